@@ -0,0 +1,189 @@
+package fr.mikrosimage.gwt.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.user.client.ui.ScrollPanel;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.view.client.AsyncDataProvider;
+import com.google.gwt.view.client.HasData;
+import com.google.gwt.view.client.Range;
+import com.google.gwt.view.client.SetSelectionModel;
+
+import ru.ppsrk.gwt.client.ClientUtils.MyAsyncCallback;
+import ru.ppsrk.gwt.client.HasId;
+import ru.ppsrk.gwt.client.KeysetPage;
+
+/**
+ * Data grid that loads the data page by page from the server using the keyset pagination. The next page is requested when the user
+ * scrolls to the bottom, the selection and the scroll position are kept on reload like in {@link CompleteResizableDataGrid}. The rows
+ * are shown in the server order, the columns aren't sortable on the client.
+ */
+public class PagedResizableDataGrid<T extends HasId, S extends SetSelectionModel<T>> extends ResizableDataGrid<T> {
+
+    public interface PageLoader<T> {
+        void loadPage(String cursor, int pageSize, AsyncCallback<KeysetPage<T>> callback);
+    }
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    // distance to the bottom in pixels to start loading the next page
+    private static final int SCROLL_THRESHOLD = 50;
+    private S selectionModel;
+    private int loadPageSize;
+    private PageLoader<T> pageLoader;
+    private List<T> rows = new ArrayList<>();
+    private String cursor = null;
+    private boolean hasMore = true;
+    private boolean loading = false;
+    // incremented on reload to drop the responses to the earlier requests
+    private int generation = 0;
+    private Set<Long> selectedSet = new HashSet<>();
+    private int restoreRows = 0;
+    private int scrollPos = 0;
+    private boolean restoring = false;
+    private AsyncDataProvider<T> dataProvider = new AsyncDataProvider<T>() {
+
+        @Override
+        protected void onRangeChanged(HasData<T> display) {
+            fetch();
+        }
+    };
+
+    public PagedResizableDataGrid(S selectionModel) {
+        this(selectionModel, DEFAULT_PAGE_SIZE);
+    }
+
+    public PagedResizableDataGrid(S selectionModel, int loadPageSize) {
+        this.selectionModel = selectionModel;
+        this.loadPageSize = loadPageSize;
+        setPageSize(loadPageSize);
+        setup(dataProvider, selectionModel, null, null);
+        final ScrollPanel scrollPanel = getScrollPanel();
+        scrollPanel.addScrollHandler(event -> {
+            if (hasMore && !loading
+                    && scrollPanel.getVerticalScrollPosition() >= scrollPanel.getMaximumVerticalScrollPosition() - SCROLL_THRESHOLD) {
+                setVisibleRange(0, rows.size() + loadPageSize);
+            }
+        });
+    }
+
+    @Override
+    public S getSelectionModel() {
+        return selectionModel;
+    }
+
+    public void setPageLoader(PageLoader<T> pageLoader) {
+        this.pageLoader = pageLoader;
+    }
+
+    /**
+     * @return the rows loaded so far
+     */
+    public List<T> getLoadedRows() {
+        return rows;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public void reload() {
+        reload(false);
+    }
+
+    /**
+     * Drops the loaded rows and loads them again from the first page.
+     *
+     * @param restorePosition
+     *            load as many rows as were loaded before and restore the scroll position
+     */
+    public void reload(boolean restorePosition) {
+        saveSelection();
+        selectionModel.clear();
+        restoreRows = restorePosition ? rows.size() : 0;
+        restoring = restorePosition;
+        generation++;
+        loading = false;
+        rows.clear();
+        cursor = null;
+        hasMore = true;
+        setEmptyTableWidget(getLoadingIndicator());
+        setVisibleRangeAndClearData(new Range(0, Math.max(loadPageSize, restoreRows)), true);
+    }
+
+    public void saveSelection() {
+        scrollPos = getScrollPanel().getVerticalScrollPosition();
+        selectedSet.clear();
+        for (T item : selectionModel.getSelectedSet()) {
+            selectedSet.add(item.getId());
+        }
+    }
+
+    public void clearSelection() {
+        selectionModel.clear();
+        selectedSet.clear();
+        restoreRows = 0;
+        restoring = false;
+    }
+
+    private void fetch() {
+        if (pageLoader == null) {
+            return;
+        }
+        Range range = getVisibleRange();
+        int end = Math.max(range.getStart() + range.getLength(), restoreRows);
+        if (rows.size() >= end || !hasMore) {
+            show();
+            return;
+        }
+        if (loading) {
+            return;
+        }
+        loading = true;
+        final int requestGeneration = generation;
+        pageLoader.loadPage(cursor, loadPageSize, new MyAsyncCallback<KeysetPage<T>>() {
+
+            @Override
+            public void onSuccess(KeysetPage<T> result) {
+                if (requestGeneration != generation) {
+                    return;
+                }
+                loading = false;
+                rows.addAll(result.getItems());
+                cursor = result.getCursor();
+                hasMore = result.isHasMore();
+                for (T item : result.getItems()) {
+                    if (item.getId() != null && selectedSet.contains(item.getId())) {
+                        selectionModel.setSelected(item, true);
+                    }
+                }
+                fetch();
+            }
+
+            @Override
+            public void onFailure(Throwable caught) {
+                if (requestGeneration == generation) {
+                    loading = false;
+                }
+                super.onFailure(caught);
+            }
+        });
+    }
+
+    private void show() {
+        setEmptyTableWidget(emptyTableWidget);
+        Range range = getVisibleRange();
+        int start = Math.min(range.getStart(), rows.size());
+        int end = Math.min(range.getStart() + range.getLength(), rows.size());
+        dataProvider.updateRowCount(rows.size(), !hasMore);
+        dataProvider.updateRowData(start, new ArrayList<>(rows.subList(start, end)));
+        if (restoring) {
+            restoring = false;
+            restoreRows = 0;
+            Scheduler.get().scheduleDeferred(() -> getScrollPanel().setVerticalScrollPosition(scrollPos));
+        }
+    }
+}
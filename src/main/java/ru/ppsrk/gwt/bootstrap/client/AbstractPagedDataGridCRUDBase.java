@@ -0,0 +1,143 @@
+package ru.ppsrk.gwt.bootstrap.client;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.shared.EventBus;
+import com.google.gwt.event.shared.HandlerRegistration;
+import com.google.gwt.uibinder.client.UiField;
+import com.google.gwt.uibinder.client.UiHandler;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.IsWidget;
+import com.google.gwt.view.client.SetSelectionModel;
+
+import fr.mikrosimage.gwt.client.PagedResizableDataGrid;
+import ru.ppsrk.gwt.bootstrap.client.AbstractDataGridCRUDBase.CRUDMessages;
+import ru.ppsrk.gwt.client.AlertRuntimeException;
+import ru.ppsrk.gwt.client.ClientUtils.MyAsyncCallback;
+import ru.ppsrk.gwt.client.HasListboxValue;
+import ru.ppsrk.gwt.client.KeysetPage;
+import ru.ppsrk.gwt.client.event.ReloadDataEvent;
+
+/**
+ * Same as {@link AbstractDataGridCRUDBase} but the items are loaded page by page while the user scrolls, use it for the big tables that
+ * shouldn't be loaded to the client at once. The server side is usually {@code HibernateUtil.queryPage}.
+ */
+public abstract class AbstractPagedDataGridCRUDBase<T extends HasListboxValue, S extends SetSelectionModel<T>> implements IsWidget {
+
+    @UiField(provided = true)
+    public PagedResizableDataGrid<T, S> dg_data;
+
+    public AbstractPagedDataGridCRUDBase(S selectionModel, Class<T> itemsClass, CRUDMessages messages) {
+        dg_data = new PagedResizableDataGrid<>(selectionModel);
+        dg_data.setPageLoader(this::getPage);
+        this.itemsClass = itemsClass;
+        this.messages = messages;
+    }
+
+    private EventBus eventBus;
+
+    protected CRUDMessages messages;
+    protected Class<T> itemsClass;
+
+    public HandlerRegistration registerReload(EventBus eventBus, final Long groupId) {
+        this.eventBus = eventBus;
+        return eventBus.addHandler(ReloadDataEvent.TYPE, event -> {
+            if (event.groupId == null || event.groupId.equals(groupId)) {
+                loadData();
+            }
+        });
+    }
+
+    public void broadcastReload(Long groupId) {
+        eventBus.fireEvent(new ReloadDataEvent(groupId));
+    }
+
+    protected MyAsyncCallback<Void> reloadDataCallback = new MyAsyncCallback<Void>() {
+
+        @Override
+        public void onSuccess(Void result) {
+            loadData(true);
+        }
+    };
+
+    protected abstract void openEditor(T item, AsyncCallback<Void> saveCallback);
+
+    protected abstract void deleteItem(Long id, AsyncCallback<Void> reloadCallback);
+
+    protected void deleteMultipleItems(Collection<Long> id, AsyncCallback<Void> reloadCallback) {
+        throw new AlertRuntimeException("Multiple items deletion is not supported.");
+    }
+
+    /**
+     * Loads the page of the items following the cursor.
+     *
+     * @param cursor
+     *            cursor of the previous page, null for the first page
+     * @param pageSize
+     *            maximum number of items to load
+     * @param pageCallback
+     *            callback receiving the page
+     */
+    protected abstract void getPage(String cursor, int pageSize, AsyncCallback<KeysetPage<T>> pageCallback);
+
+    protected void loadData() {
+        loadData(false);
+    }
+
+    protected void loadData(final boolean restorePosition) {
+        dg_data.reload(restorePosition);
+    }
+
+    @UiHandler("b_add")
+    public void onAddClick(ClickEvent e) {
+        edit(null);
+    }
+
+    @UiHandler("b_change")
+    public void onChangeClick(ClickEvent e) {
+        Collection<T> selected = getSelected();
+        if (selected.size() == 1) {
+            edit(selected.iterator().next());
+        } else {
+            editMultiple(selected);
+        }
+    }
+
+    @UiHandler("b_del")
+    public void onDelPartClick(ClickEvent e) {
+        Collection<T> selected = getSelected();
+        if (selected.size() == 1) {
+            T selectedItem = selected.iterator().next();
+            if (!Window.confirm(messages.confirmItemDeletion(selectedItem.getListboxValue()))) {
+                return;
+            }
+            deleteItem(selectedItem.getId(), reloadDataCallback);
+        } else {
+            if (!Window.confirm(messages.confirmMultipleItemsDeletion())) {
+                return;
+            }
+            deleteMultipleItems(selected.stream().map(T::getId).collect(Collectors.toList()), reloadDataCallback);
+        }
+    }
+
+    protected void edit(T item) {
+        openEditor(item, reloadDataCallback);
+    }
+
+    protected void editMultiple(Collection<T> item) {
+        throw new AlertRuntimeException("Multiple items editing is not supported.");
+    }
+
+    protected Collection<T> getSelected() {
+        Set<T> selected = dg_data.getSelectionModel().getSelectedSet();
+        if (selected.isEmpty()) {
+            throw new AlertRuntimeException(messages.noItemSelected());
+        }
+        return selected;
+    }
+
+}
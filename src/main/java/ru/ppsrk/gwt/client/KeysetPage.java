@@ -0,0 +1,51 @@
+package ru.ppsrk.gwt.client;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of the keyset (seek) pagination. The cursor is opaque for the client, pass it back to get the next page.
+ * 
+ * @param <T>
+ *            item type
+ */
+public class KeysetPage<T> implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 2946380957723115361L;
+    private ArrayList<T> items = new ArrayList<>();
+    private String cursor;
+    private boolean hasMore;
+
+    public KeysetPage() {
+    }
+
+    public KeysetPage(List<T> items, String cursor, boolean hasMore) {
+        this.items = new ArrayList<>(items);
+        this.cursor = cursor;
+        this.hasMore = hasMore;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return cursor pointing after the last item of the page; for an empty page it's the requested cursor
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean isHasMore() {
+        return hasMore;
+    }
+
+    @Override
+    public String toString() {
+        return "KeysetPage [items=" + items.size() + ", cursor=" + cursor + ", hasMore=" + hasMore + "]";
+    }
+}
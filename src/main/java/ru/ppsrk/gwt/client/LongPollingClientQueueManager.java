@@ -9,6 +9,7 @@ import ru.ppsrk.gwt.dto.LongPollingMessage;
 public abstract class LongPollingClientQueueManager<M extends LongPollingMessage> extends LongPollingClient<Collection<M>> {
 
     private Long lastTimestamp = 0L;
+    private Long lastSequence = 0L;
 
     /**
      * Create a new long polling queue manager.
@@ -24,19 +25,32 @@ public abstract class LongPollingClientQueueManager<M extends LongPollingMessage
         super(failureDelay);
     }
 
+    /**
+     * Returns the last known message sequence or 0 if there's no prior
+     * messages. Send this value to the server to get only actual messages.
+     * 
+     * @return last known message sequence.
+     */
+    public Long getLastSequence() {
+        return lastSequence;
+    }
+
     /**
      * Returns the last known message timestamp or null if there's no prior
      * messages. Send this value to the server to get only actual messages.
      * 
      * @return last known message timestamp or null.
+     * @deprecated the messages queued in the same millisecond as the last
+     *             received one are lost, use {@link #getLastSequence()}
      */
+    @Deprecated
     public Long getLastTimestamp() {
         return lastTimestamp;
     }
 
     /**
      * Call this from your implementation before processing to update the
-     * lastTimestamp var.
+     * lastSequence and lastTimestamp vars.
      * 
      * @param result
      *            Received collection of messages
@@ -45,6 +59,8 @@ public abstract class LongPollingClientQueueManager<M extends LongPollingMessage
     public void success(Collection<M> result) {
         Stream.concat(result.stream().map(M::getTimestamp), Stream.of(lastTimestamp)).max(Comparator.naturalOrder())
                 .ifPresent(v -> lastTimestamp = v);
+        Stream.concat(result.stream().map(M::getSequence), Stream.of(lastSequence)).max(Comparator.naturalOrder())
+                .ifPresent(v -> lastSequence = v);
     }
 
 }
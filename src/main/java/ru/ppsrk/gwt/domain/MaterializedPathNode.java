@@ -0,0 +1,84 @@
+package ru.ppsrk.gwt.domain;
+
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import ru.ppsrk.gwt.client.EqualsById;
+import ru.ppsrk.gwt.client.Hierarchic;
+import ru.ppsrk.gwt.client.SettableParent;
+
+/**
+ * Hierarchy node that stores the ids of all its ancestors and its own id in the path column, delimited by colons like "1:5:9" (the
+ * same format ClientUtils.buildPath produces).
+ */
+@SuppressWarnings("serial")
+@MappedSuperclass
+@Table(indexes = { @Index(columnList = "path"), @Index(columnList = "depth") })
+public class MaterializedPathNode extends EqualsById implements SettableParent {
+
+    @GeneratedValue
+    @Id
+    Long id;
+    String path;
+    Long depth;
+    @Transient
+    Long directChildrenCount;
+    @Transient
+    Long childrenCount;
+    @Transient
+    Hierarchic parent;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public Long getDepth() {
+        return depth;
+    }
+
+    public void setDepth(Long depth) {
+        this.depth = depth;
+    }
+
+    public Long getDirectChildrenCount() {
+        return directChildrenCount;
+    }
+
+    public void setDirectChildrenCount(Long directChildrenCount) {
+        this.directChildrenCount = directChildrenCount;
+    }
+
+    public Long getChildrenCount() {
+        return childrenCount;
+    }
+
+    public void setChildrenCount(Long childrenCount) {
+        this.childrenCount = childrenCount;
+    }
+
+    @Override
+    public void setParent(Hierarchic parent) {
+        this.parent = parent;
+    }
+
+    @Override
+    public Hierarchic getParent() {
+        return parent;
+    }
+}
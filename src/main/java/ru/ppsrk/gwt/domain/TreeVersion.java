@@ -0,0 +1,41 @@
+package ru.ppsrk.gwt.domain;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Modification counter of a nested set tree, used by the managers for the optimistic concurrency control across application nodes.
+ * Map this entity only if the versioning is enabled in {@link ru.ppsrk.gwt.server.nestedset.NSMFactory}.
+ */
+@Entity
+@Table(name = "tree_versions")
+public class TreeVersion {
+    @Id
+    String tree;
+    Long version;
+
+    public TreeVersion() {
+    }
+
+    public TreeVersion(String tree, Long version) {
+        this.tree = tree;
+        this.version = version;
+    }
+
+    public String getTree() {
+        return tree;
+    }
+
+    public void setTree(String tree) {
+        this.tree = tree;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
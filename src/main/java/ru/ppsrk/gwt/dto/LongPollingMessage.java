@@ -5,6 +5,7 @@ import java.io.Serializable;
 @SuppressWarnings("serial")
 public class LongPollingMessage implements Serializable {
     private long timestamp;
+    private long sequence;
 
     public LongPollingMessage() {
         timestamp = System.currentTimeMillis();
@@ -14,4 +15,19 @@ public class LongPollingMessage implements Serializable {
         return timestamp;
     }
 
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return number assigned when the message was queued on the server, increases with every queued message
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
 }
\ No newline at end of file
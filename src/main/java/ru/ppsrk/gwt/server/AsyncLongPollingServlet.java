@@ -0,0 +1,276 @@
+package ru.ppsrk.gwt.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.RPCRequest;
+import com.google.gwt.user.server.rpc.RPCServletUtils;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+import ru.ppsrk.gwt.client.LogicException;
+import ru.ppsrk.gwt.server.LongPollingServer.AsyncPolling;
+import ru.ppsrk.gwt.server.LongPollingServer.Poll;
+import ru.ppsrk.gwt.server.LongPollingServer.ResultCallback;
+
+/**
+ * Servlet which long polling methods don't hold the container thread while waiting. Return the result of
+ * {@link #startLongPolling(LongPollingServer, Poll)} from such a method:
+ *
+ * <pre>
+ * public Collection&lt;Message&gt; getMessages(Long fromSequence) throws GwtUtilException {
+ *     return startLongPolling(queueManager, queueManager.poll(fromSequence));
+ * }
+ * </pre>
+ *
+ * If the result is ready it's returned as usual, otherwise the request is suspended with {@link HttpServletRequest#startAsync()} and
+ * the response is sent from a container thread ({@link AsyncContext#start(Runnable)}) when the result comes or the period passes. The
+ * servlet and all the filters before it should be declared with &lt;async-supported&gt;true&lt;/async-supported&gt;, if they aren't the
+ * method blocks the thread till the result like {@link LongPollingServer#start()}. The sessions opened by {@link RequiresSession} are
+ * closed when the method returns so the poll shouldn't use them.
+ */
+public abstract class AsyncLongPollingServlet extends ProtectedServlet {
+
+    private static final long serialVersionUID = 2637725519440962193L;
+    // how long the container waits for the response after the polling period
+    private static final long ASYNC_TIMEOUT_MARGIN = 10000;
+
+    private final transient Logger log = LoggerFactory.getLogger(getClass());
+    private final transient ThreadLocal<RPCRequest> rpcRequestTL = new ThreadLocal<>();
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!"POST".equals(request.getMethod())) {
+            super.service(request, response);
+            return;
+        }
+        // the same as RemoteServiceServlet.doPost but the response isn't written if the call was suspended
+        synchronized (this) {
+            if (perThreadRequest == null) {
+                perThreadRequest = new ThreadLocal<>();
+            }
+            if (perThreadResponse == null) {
+                perThreadResponse = new ThreadLocal<>();
+            }
+        }
+        perThreadRequest.set(request);
+        perThreadResponse.set(response);
+        try {
+            String requestPayload = readContent(request);
+            onBeforeRequestDeserialized(requestPayload);
+            String responsePayload = processCall(requestPayload);
+            if (!request.isAsyncStarted()) {
+                writeResponse(request, response, responsePayload);
+            }
+        } catch (Throwable e) {
+            if (request.isAsyncStarted()) {
+                RPCServletUtils.writeResponseForUnexpectedFailure(getServletContext(), response, e);
+                request.getAsyncContext().complete();
+            } else {
+                doUnexpectedFailure(e);
+            }
+        } finally {
+            perThreadRequest.set(null);
+            perThreadResponse.set(null);
+            rpcRequestTL.remove();
+        }
+    }
+
+    @Override
+    protected void onAfterRequestDeserialized(RPCRequest rpcRequest) {
+        super.onAfterRequestDeserialized(rpcRequest);
+        rpcRequestTL.set(rpcRequest);
+    }
+
+    private void writeResponse(HttpServletRequest request, HttpServletResponse response, String responsePayload) throws IOException {
+        onAfterResponseSerialized(responsePayload);
+        boolean gzipEncode = RPCServletUtils.acceptsGzipEncoding(request) && shouldCompressResponse(request, response, responsePayload);
+        RPCServletUtils.writeResponse(getServletContext(), response, responsePayload, gzipEncode);
+    }
+
+    /**
+     * Start the long polling. Call it from the RPC method and return its result.
+     *
+     * @param server
+     *            server to wait on
+     * @param poll
+     *            poll of this client
+     * @return the result if it's ready or the request can't be suspended, null otherwise
+     * @throws GwtUtilException
+     *             if the poll has failed
+     */
+    protected <T> T startLongPolling(LongPollingServer<T> server, Poll<T> poll) throws GwtUtilException {
+        T result = poll.poll();
+        if (result != null) {
+            return result;
+        }
+        HttpServletRequest request = getThreadLocalRequest();
+        RPCRequest rpcRequest = rpcRequestTL.get();
+        if (request == null || rpcRequest == null || !request.isAsyncSupported()) {
+            return awaitResult(server, poll);
+        }
+        AsyncContext asyncContext = request.startAsync(request, getThreadLocalResponse());
+        asyncContext.setTimeout(server.period + ASYNC_TIMEOUT_MARGIN);
+        AsyncResponse<T> asyncResponse = new AsyncResponse<>(asyncContext, rpcRequest);
+        asyncContext.addListener(asyncResponse);
+        asyncResponse.setPolling(server.startAsync(poll, asyncResponse));
+        return null;
+    }
+
+    private <T> T awaitResult(LongPollingServer<T> server, Poll<T> poll) throws GwtUtilException {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        server.startAsync(poll, new ResultCallback<T>() {
+
+            @Override
+            public void onResult(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable caught) {
+                future.completeExceptionally(caught);
+            }
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LogicException("Interrupted while long polling.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GwtUtilException) {
+                throw (GwtUtilException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new LogicException("Long polling failed.", cause);
+        }
+    }
+
+    private interface ResponseEncoder {
+        String encode() throws SerializationException;
+    }
+
+    private class AsyncResponse<T> implements ResultCallback<T>, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final RPCRequest rpcRequest;
+        private final AtomicBoolean responded = new AtomicBoolean();
+        private volatile AsyncPolling polling;
+
+        AsyncResponse(AsyncContext asyncContext, RPCRequest rpcRequest) {
+            this.asyncContext = asyncContext;
+            this.rpcRequest = rpcRequest;
+        }
+
+        void setPolling(AsyncPolling polling) {
+            this.polling = polling;
+            if (responded.get()) {
+                // the request has ended while the polling was starting
+                polling.cancel();
+            }
+        }
+
+        private void cancelPolling() {
+            AsyncPolling current = polling;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void onResult(final T result) {
+            if (responded.compareAndSet(false, true)) {
+                respond(() -> RPC.encodeResponseForSuccess(rpcRequest.getMethod(), result, rpcRequest.getSerializationPolicy(),
+                        rpcRequest.getFlags()), null);
+            }
+        }
+
+        @Override
+        public void onFailure(final Throwable caught) {
+            if (responded.compareAndSet(false, true)) {
+                respond(() -> RPC.encodeResponseForFailure(rpcRequest.getMethod(), caught, rpcRequest.getSerializationPolicy(),
+                        rpcRequest.getFlags()), caught);
+            }
+        }
+
+        /**
+         * The callbacks are called on the long polling server threads, the response is encoded and written on a container thread so a
+         * slow client doesn't hold them.
+         */
+        private void respond(final ResponseEncoder encoder, final Throwable failure) {
+            try {
+                asyncContext.start(() -> write(encoder, failure));
+            } catch (IllegalStateException e) {
+                // the request has been completed by the container already
+                log.debug("Long polling request is already completed: ", e);
+            }
+        }
+
+        private void write(ResponseEncoder encoder, Throwable failure) {
+            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            try {
+                writeResponse((HttpServletRequest) asyncContext.getRequest(), response, encoder.encode());
+            } catch (Throwable e) {
+                writeFailure(response, failure != null ? failure : e);
+            } finally {
+                complete();
+            }
+        }
+
+        private void writeFailure(HttpServletResponse response, Throwable e) {
+            log.warn("Long polling response failed: ", e);
+            try {
+                RPCServletUtils.writeResponseForUnexpectedFailure(getServletContext(), response, e);
+            } catch (RuntimeException writeException) {
+                log.warn("Can't write the long polling failure: ", writeException);
+            }
+        }
+
+        private void complete() {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // the request has been completed by the container already
+                log.debug("Long polling request is already completed: ", e);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            cancelPolling();
+            onResult(null);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            // the client has disconnected
+            responded.set(true);
+            cancelPolling();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            responded.set(true);
+            cancelPolling();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            // not restarted
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package ru.ppsrk.gwt.server;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.dozer.DozerBeanMapper;
+import org.dozer.MappingException;
+import org.hibernate.proxy.HibernateProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Bean mapper that resolves the properties of every (source, destination) class pair once and then copies them with method handles.
+ * Only what's mapped the same way by Dozer is handled: same named properties of the value types (primitives, wrappers, strings, enums,
+ * big numbers), dates and nested beans. Everything else is delegated to the Dozer mapper, namely the classes mentioned in the XML
+ * mapping files or annotated with Dozer annotations, the beans having collection, map or array properties and the objects with values
+ * that need a conversion.
+ */
+public class CompiledMapper {
+
+    private enum Kind {
+        VALUE, DATE, BEAN
+    }
+
+    private static final class Property {
+        final Kind kind;
+        final Class<?> destType;
+        final boolean primitive;
+        final MethodHandle getter;
+        final MethodHandle setter;
+
+        Property(Kind kind, Class<?> destType, MethodHandle getter, MethodHandle setter) {
+            this.kind = kind;
+            this.primitive = destType.isPrimitive();
+            this.destType = wrap(destType);
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    private static final class Plan {
+        final MethodHandle constructor;
+        final Property[] properties;
+        final boolean nested;
+
+        Plan(MethodHandle constructor, Property[] properties, boolean nested) {
+            this.constructor = constructor;
+            this.properties = properties;
+            this.nested = nested;
+        }
+    }
+
+    /**
+     * Thrown when a value can't be mapped exactly like Dozer does it, the whole object is then mapped by Dozer. Depends on the values
+     * only (a null for a primitive, a subclass needing a conversion) so the plan is kept for the next objects, the property types that
+     * never map the same way make the plan unsupported when it's created.
+     */
+    @SuppressWarnings("serial")
+    private static final class FallbackRequired extends RuntimeException {
+        FallbackRequired() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Plan UNSUPPORTED = new Plan(null, new Property[0], false);
+    private static final FallbackRequired FALLBACK = new FallbackRequired();
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private final DozerBeanMapper fallback;
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final ConcurrentMap<Class<?>, ConcurrentMap<Class<?>, Plan>> plans = new ConcurrentHashMap<>();
+    private volatile Set<String> xmlMappedClasses = Collections.emptySet();
+    private volatile boolean enabled = true;
+    private volatile boolean xmlCompatible = true;
+
+    public CompiledMapper(DozerBeanMapper fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Maps the object to a new instance of the destination class.
+     *
+     * @param source
+     *            object to map, not null
+     * @param destClass
+     *            destination class
+     * @return mapped object
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T map(Object source, Class<T> destClass) {
+        if (!enabled || !xmlCompatible) {
+            return fallback.map(source, destClass);
+        }
+        Plan plan = getPlan(source.getClass(), destClass);
+        if (plan == UNSUPPORTED) {
+            return fallback.map(source, destClass);
+        }
+        try {
+            return (T) map(plan, source, null);
+        } catch (FallbackRequired e) {
+            log.debug("Mapping {} to {} falls back to Dozer", source.getClass(), destClass);
+            return fallback.map(source, destClass);
+        }
+    }
+
+    /**
+     * Sets the Dozer mapping files. The classes mentioned in them are always mapped by Dozer, the files with the global configuration
+     * disable the compiled mapping completely.
+     *
+     * @param files
+     *            mapping files as accepted by {@link DozerBeanMapper#setMappingFiles(List)}
+     */
+    public void setMappingFiles(List<String> files) {
+        fallback.setMappingFiles(files);
+        Set<String> classes = new HashSet<>();
+        boolean compatible = true;
+        for (String file : files) {
+            try {
+                compatible &= readMappedClasses(file, classes);
+            } catch (IOException | ParserConfigurationException | SAXException e) {
+                log.warn("Can't read the mapping file {}, compiled mapping is disabled: {}", file, e.getMessage());
+                compatible = false;
+            }
+        }
+        xmlMappedClasses = classes;
+        xmlCompatible = compatible;
+        plans.clear();
+    }
+
+    /**
+     * @param enabled
+     *            false to map everything with Dozer
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void clear() {
+        plans.clear();
+    }
+
+    private Object map(Plan plan, Object source, Map<Object, Object> mapped) {
+        try {
+            Object dest = (Object) plan.constructor.invokeExact();
+            if (mapped == null && plan.nested) {
+                mapped = new IdentityHashMap<>();
+            }
+            if (mapped != null) {
+                mapped.put(source, dest);
+            }
+            for (Property property : plan.properties) {
+                Object value = (Object) property.getter.invokeExact(source);
+                property.setter.invokeExact(dest, convert(property, value, mapped));
+            }
+            return dest;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new MappingException(e);
+        }
+    }
+
+    private Object convert(Property property, Object value, Map<Object, Object> mapped) {
+        if (value == null) {
+            if (property.primitive) {
+                throw FALLBACK;
+            }
+            return null;
+        }
+        switch (property.kind) {
+        case VALUE:
+            if (property.destType.isInstance(value)) {
+                return value;
+            }
+            break;
+        case DATE:
+            if (value instanceof Date) {
+                return new Date(((Date) value).getTime());
+            }
+            break;
+        case BEAN:
+            Object existing = mapped.get(value);
+            if (existing != null && property.destType.isInstance(existing)) {
+                return existing;
+            }
+            if (isBeanClass(value.getClass())) {
+                Plan plan = getPlan(value.getClass(), property.destType);
+                return plan == UNSUPPORTED ? fallback.map(value, property.destType) : map(plan, value, mapped);
+            }
+            break;
+        default:
+            break;
+        }
+        throw FALLBACK;
+    }
+
+    private Plan getPlan(Class<?> sourceClass, Class<?> destClass) {
+        ConcurrentMap<Class<?>, Plan> byDest = plans.computeIfAbsent(sourceClass, k -> new ConcurrentHashMap<>());
+        Plan plan = byDest.get(destClass);
+        if (plan == null) {
+            plan = createPlan(sourceClass, destClass);
+            Plan existing = byDest.putIfAbsent(destClass, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    private Plan createPlan(Class<?> sourceClass, Class<?> destClass) {
+        if (!isCompilable(getRealClass(sourceClass)) || !isCompilable(destClass) || HibernateProxy.class.isAssignableFrom(destClass)
+                || !isBeanClass(destClass) || Modifier.isAbstract(destClass.getModifiers())) {
+            return UNSUPPORTED;
+        }
+        try {
+            Constructor<?> constructor = destClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            MethodHandle constructorHandle = lookup.unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+            Map<String, Method> getters = getGetters(sourceClass);
+            Map<String, Method> destGetters = getGetters(destClass);
+            List<Property> properties = new ArrayList<>();
+            boolean nested = false;
+            for (Map.Entry<String, List<Method>> setters : getSetters(destClass).entrySet()) {
+                Method getter = getters.get(setters.getKey());
+                if (getter == null) {
+                    continue;
+                }
+                Method setter = chooseSetter(setters.getValue(), destGetters.get(setters.getKey()));
+                if (setter == null) {
+                    return UNSUPPORTED;
+                }
+                Class<?> destType = setter.getParameterTypes()[0];
+                Kind kind = getKind(destType);
+                if (kind == null || kind != Kind.BEAN && !isAssignable(getter.getReturnType(), destType)) {
+                    return UNSUPPORTED;
+                }
+                nested |= kind == Kind.BEAN;
+                getter.setAccessible(true);
+                setter.setAccessible(true);
+                properties.add(new Property(kind, destType, lookup.unreflect(getter).asType(GETTER_TYPE),
+                        lookup.unreflect(setter).asType(SETTER_TYPE)));
+            }
+            log.debug("Compiled mapping {} -> {}: {} properties", sourceClass, destClass, properties.size());
+            return new Plan(constructorHandle, properties.toArray(new Property[properties.size()]), nested);
+        } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+            log.debug("Mapping {} -> {} can't be compiled: {}", sourceClass, destClass, e.getMessage());
+            return UNSUPPORTED;
+        }
+    }
+
+    /**
+     * @return property kind or null if the property type makes the mapping unsupported
+     */
+    private Kind getKind(Class<?> destType) {
+        if (destType.isArray() || Collection.class.isAssignableFrom(destType) || Map.class.isAssignableFrom(destType)) {
+            return null;
+        }
+        if (destType.isPrimitive() || destType.isEnum() || destType == String.class || destType == Boolean.class
+                || destType == Character.class || destType == BigDecimal.class || destType == BigInteger.class
+                || Number.class.isAssignableFrom(destType) && destType.getName().startsWith("java.lang.")) {
+            return Kind.VALUE;
+        }
+        if (destType == Date.class) {
+            return Kind.DATE;
+        }
+        if (isBeanClass(destType) && !destType.isInterface() && !Modifier.isAbstract(destType.getModifiers())) {
+            return Kind.BEAN;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if some values of the source type may be assigned to the destination type as is, the rest fall back at run time
+     */
+    private boolean isAssignable(Class<?> sourceType, Class<?> destType) {
+        Class<?> source = wrap(sourceType);
+        Class<?> dest = wrap(destType);
+        return dest.isAssignableFrom(source) || source.isAssignableFrom(dest);
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        return type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+    }
+
+    private Method chooseSetter(List<Method> setters, Method destGetter) {
+        if (setters.size() == 1) {
+            return setters.get(0);
+        }
+        if (destGetter != null) {
+            for (Method setter : setters) {
+                if (setter.getParameterTypes()[0] == destGetter.getReturnType()) {
+                    return setter;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Method> getGetters(Class<?> clazz) {
+        Map<String, Method> result = new HashMap<>();
+        for (Method method : clazz.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length > 0 || method.getReturnType() == void.class
+                    || method.getDeclaringClass() == Object.class || method.isBridge()) {
+                continue;
+            }
+            String name = method.getName();
+            if (name.startsWith("is") && name.length() > 2 && method.getReturnType() == boolean.class) {
+                result.put(Introspector.decapitalize(name.substring(2)), method);
+            } else if (name.startsWith("get") && name.length() > 3) {
+                result.putIfAbsent(Introspector.decapitalize(name.substring(3)), method);
+            }
+        }
+        return result;
+    }
+
+    private Map<String, List<Method>> getSetters(Class<?> clazz) {
+        Map<String, List<Method>> result = new HashMap<>();
+        for (Method method : clazz.getMethods()) {
+            String name = method.getName();
+            if (!Modifier.isStatic(method.getModifiers()) && method.getParameterTypes().length == 1 && name.startsWith("set")
+                    && name.length() > 3 && !method.isBridge()) {
+                result.computeIfAbsent(Introspector.decapitalize(name.substring(3)), k -> new ArrayList<>()).add(method);
+            }
+        }
+        return result;
+    }
+
+    private boolean isBeanClass(Class<?> clazz) {
+        return !clazz.isPrimitive() && !clazz.isArray() && !clazz.isEnum() && !clazz.getName().startsWith("java.")
+                && !clazz.getName().startsWith("javax.") && !Collection.class.isAssignableFrom(clazz)
+                && !Map.class.isAssignableFrom(clazz);
+    }
+
+    private boolean isCompilable(Class<?> clazz) {
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            if (xmlMappedClasses.contains(current.getName()) || hasDozerAnnotations(current)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasDozerAnnotations(Class<?> clazz) {
+        List<AccessibleObject> members = new ArrayList<>();
+        Collections.addAll(members, clazz.getDeclaredFields());
+        Collections.addAll(members, clazz.getDeclaredMethods());
+        for (AccessibleObject member : members) {
+            for (Annotation annotation : member.getAnnotations()) {
+                if (annotation.annotationType().getName().startsWith("org.dozer.")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Class<?> getRealClass(Class<?> clazz) {
+        return HibernateProxy.class.isAssignableFrom(clazz) ? clazz.getSuperclass() : clazz;
+    }
+
+    /**
+     * Collects the classes mentioned in the mapping file.
+     *
+     * @return false if the file can't be found or has the global configuration
+     */
+    private boolean readMappedClasses(String file, Set<String> classes) throws IOException, ParserConfigurationException, SAXException {
+        URL url = file.startsWith("file:") ? new URL(file) : Thread.currentThread().getContextClassLoader().getResource(file);
+        if (url == null) {
+            log.warn("Mapping file {} not found, compiled mapping is disabled", file);
+            return false;
+        }
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setValidating(false);
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        Document document;
+        try (InputStream stream = url.openStream()) {
+            document = factory.newDocumentBuilder().parse(stream);
+        }
+        for (String tag : new String[] { "class-a", "class-b" }) {
+            NodeList nodes = document.getElementsByTagName(tag);
+            for (int i = 0; i < nodes.getLength(); i++) {
+                classes.add(nodes.item(i).getTextContent().trim());
+            }
+        }
+        if (document.getElementsByTagName("configuration").getLength() > 0) {
+            log.info("Mapping file {} has the global configuration, compiled mapping is disabled", file);
+            return false;
+        }
+        return true;
+    }
+}
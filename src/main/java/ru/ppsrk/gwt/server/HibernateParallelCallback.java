@@ -0,0 +1,7 @@
+package ru.ppsrk.gwt.server;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+
+public interface HibernateParallelCallback<T> {
+    T run(ParallelSessions sessions) throws GwtUtilException;
+}
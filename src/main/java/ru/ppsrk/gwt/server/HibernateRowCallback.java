@@ -0,0 +1,7 @@
+package ru.ppsrk.gwt.server;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+
+public interface HibernateRowCallback<T> {
+    void process(T row) throws GwtUtilException;
+}
@@ -2,38 +2,71 @@ package ru.ppsrk.gwt.server;
 
 import static ru.ppsrk.gwt.server.ServerUtils.*;
 
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.hibernate.CacheMode;
 import org.hibernate.Filter;
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.service.ServiceRegistry;
 
 import com.mysql.jdbc.AbandonedConnectionCleanupThread;
 
 import ru.ppsrk.gwt.client.GwtUtilException;
 import ru.ppsrk.gwt.client.HasId;
+import ru.ppsrk.gwt.client.KeysetPage;
 import ru.ppsrk.gwt.client.LogicException;
 import ru.ppsrk.gwt.server.ServerUtils.MapperHint;
 
 public class HibernateUtil {
 
+    // MySQL Connector/J ignores it unless the connection has useCursorFetch=true, see queryForEach
+    private static final int STREAM_FETCH_SIZE = 500;
+    private static final int DEFAULT_SAVE_BATCH_SIZE = 50;
+    private static final String CURSOR_PARAM = "keysetCursor";
+
     private HibernateUtil() {
     }
 
     public static class ListQueryFilter {
         private List<String> filterNames = new ArrayList<>();
         private List<Map<String, Object>> filterParams = new ArrayList<>();
+        private String cacheRegion;
 
         public ListQueryFilter addFilter(String name, String[] paramNames, Object[] paramValues) throws LogicException {
             filterNames.add(name);
@@ -50,6 +83,14 @@ public class HibernateUtil {
             return this;
         }
 
+        /**
+         * Puts the query results to the cache region configured with {@link QueryCacheRegions#configureRegion}.
+         */
+        public ListQueryFilter setCacheRegion(String cacheRegion) {
+            this.cacheRegion = cacheRegion;
+            return this;
+        }
+
         public void applyFilter(Session session) {
             for (int i = 0; i < filterNames.size(); i++) {
                 Filter filter = session.enableFilter(filterNames.get(i));
@@ -61,7 +102,97 @@ public class HibernateUtil {
         }
     }
 
+    /**
+     * Keyset (seek) pagination query. The rows are ordered by the keys and every next page starts after the keys of the last row of the
+     * previous one, so the database reads only the rows of the page however deep it is. The keys should be non-null and the last one
+     * should be unique, e.g. "d.name", "d.id".
+     */
+    public static class KeysetQuery {
+        private final String alias;
+        private final String from;
+        private String where;
+        private Map<String, Object> params = new HashMap<>();
+        private String[] keys;
+        private boolean descending = false;
+
+        /**
+         * @param alias
+         *            alias of the selected entity
+         * @param from
+         *            from clause without the "from" keyword, e.g. "Dept d join d.parent p"
+         */
+        public KeysetQuery(String alias, String from) {
+            this.alias = alias;
+            this.from = from;
+        }
+
+        public KeysetQuery where(String condition) {
+            where = condition;
+            return this;
+        }
+
+        public KeysetQuery setParameter(String name, Object value) {
+            params.put(name, value);
+            return this;
+        }
+
+        /**
+         * @param keys
+         *            ordering keys, at least one
+         * @throws IllegalArgumentException
+         *             if no keys are passed
+         */
+        public KeysetQuery orderBy(String... keys) {
+            if (keys == null || keys.length == 0) {
+                throw new IllegalArgumentException("Keyset query needs at least one ordering key");
+            }
+            this.keys = keys;
+            return this;
+        }
+
+        public KeysetQuery descending() {
+            descending = true;
+            return this;
+        }
+
+        private String build(boolean seek) {
+            StringBuilder sb = new StringBuilder("select ").append(alias);
+            for (String key : keys) {
+                sb.append(", ").append(key);
+            }
+            sb.append(" from ").append(from);
+            if (where != null) {
+                sb.append(" where (").append(where).append(")");
+            }
+            if (seek) {
+                sb.append(where != null ? " and (" : " where (");
+                for (int i = 0; i < keys.length; i++) {
+                    if (i > 0) {
+                        sb.append(" or ");
+                    }
+                    sb.append("(");
+                    for (int j = 0; j < i; j++) {
+                        sb.append(keys[j]).append(" = :").append(CURSOR_PARAM).append(j).append(" and ");
+                    }
+                    sb.append(keys[i]).append(descending ? " < :" : " > :").append(CURSOR_PARAM).append(i).append(")");
+                }
+                sb.append(")");
+            }
+            sb.append(" order by ");
+            for (int i = 0; i < keys.length; i++) {
+                sb.append(i > 0 ? ", " : "").append(keys[i]).append(descending ? " desc" : "");
+            }
+            return sb.toString();
+        }
+    }
+
+    public enum ReplicaSelection {
+        ROUND_ROBIN, LEAST_LOADED
+    }
+
     private static List<SessionFactory> sessionFactory = new ArrayList<>();
+    private static Map<Integer, ReplicaSet> replicas = new ConcurrentHashMap<>();
+    private static ExecutorService parallelExecutor;
 
     public static void cleanup() {
         System.out.println("Cleaning up hibernate utils...");
@@ -81,6 +212,13 @@ public class HibernateUtil {
             factory.close();
         }
         sessionFactory = null;
+        synchronized (HibernateUtil.class) {
+            if (parallelExecutor != null) {
+                System.out.println("Shutting down parallel executor...");
+                parallelExecutor.shutdownNow();
+                parallelExecutor = null;
+            }
+        }
     }
 
     public static void mysqlCleanup() {
@@ -93,12 +231,21 @@ public class HibernateUtil {
     }
 
     public static <T> void deleteObject(final Class<T> objectClass, final Long id) throws GwtUtilException {
-        HibernateUtil.exec(session -> {
+        execAndEvict(objectClass, session -> {
             session.delete(session.get(objectClass, id));
             return null;
         });
     }
 
+    /**
+     * Runs the callback in a transaction and clears the query cache regions depending on the entity class after the commit.
+     */
+    private static <T> T execAndEvict(Class<?> entityClass, HibernateCallback<T> callback) throws GwtUtilException {
+        T result = exec(callback);
+        QueryCacheRegions.evict(entityClass);
+        return result;
+    }
+
     public static <T> T exec(HibernateCallback<T> callback) throws GwtUtilException {
         return exec(0, callback);
     }
@@ -124,6 +271,86 @@ public class HibernateUtil {
         return result;
     }
 
+    public static <T> T execReadOnly(HibernateCallback<T> callback) throws GwtUtilException {
+        return execReadOnly(0, callback);
+    }
+
+    /**
+     * Runs the callback in a read-only transaction on a replica of the session factory if it has any (see
+     * {@link #setReplicas(int, ReplicaSelection, int...)}) or on the factory itself. The session doesn't snapshot the loaded entities
+     * and is never flushed so the changes made to them are ignored.
+     */
+    public static <T> T execReadOnly(int sessionNumber, HibernateCallback<T> callback) throws GwtUtilException {
+        ReplicaSet replicaSet = replicas.get(sessionNumber);
+        int replica = replicaSet != null ? replicaSet.acquire() : sessionNumber;
+        try {
+            T result = null;
+            SessionFactory sessionFactory = HibernateUtil.getSessionFactory(replica);
+            if (sessionFactory != null) {
+                Session session = openSession(sessionFactory, true);
+                try {
+                    result = callback.run(session);
+                    if (session.getTransaction().isActive()) {
+                        session.getTransaction().commit();
+                    }
+                } catch (Exception e) {
+                    session.getTransaction().rollback();
+                    throw e;
+                } finally {
+                    session.close();
+                }
+            }
+            return result;
+        } finally {
+            if (replicaSet != null) {
+                replicaSet.release(replica);
+            }
+        }
+    }
+
+    /**
+     * Routes the read-only sessions of the factory to the replicas.
+     * 
+     * @param sessionNumber
+     *            number of the primary session factory
+     * @param selection
+     *            how to choose the replica for every session
+     * @param replicaNumbers
+     *            numbers of the replica session factories, the primary may be included too; none to stop routing
+     */
+    public static void setReplicas(int sessionNumber, ReplicaSelection selection, int... replicaNumbers) {
+        if (replicaNumbers.length == 0) {
+            replicas.remove(sessionNumber);
+        } else {
+            replicas.put(sessionNumber, new ReplicaSet(replicaNumbers, selection));
+        }
+    }
+
+    static ReplicaSet getReplicas(int sessionNumber) {
+        return replicas.get(sessionNumber);
+    }
+
+    /**
+     * Opens the session and begins the transaction. The read-only session has no dirty checking and flushing, the JDBC connection is set
+     * read-only too if the factory uses {@link PooledConnectionProvider} which resets the flag when the connection is returned.
+     */
+    static Session openSession(SessionFactory factory, boolean readOnly) {
+        Session session = factory.openSession();
+        session.beginTransaction();
+        if (readOnly) {
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+            if (connectionProvider(factory) instanceof PooledConnectionProvider) {
+                session.doWork(connection -> connection.setReadOnly(true));
+            }
+        }
+        return session;
+    }
+
+    private static ConnectionProvider connectionProvider(SessionFactory factory) {
+        return ((SessionFactoryImplementor) factory).getServiceRegistry().getService(ConnectionProvider.class);
+    }
+
     public static <T> T exec(int[] sessionNumbers, HibernateMultiSessionCallback<T> callback) throws GwtUtilException {
         Session[] sessions = new Session[sessionNumbers.length];
         T result = null;
@@ -158,6 +385,136 @@ public class HibernateUtil {
         return result;
     }
 
+    public static <T> T execParallel(int[] sessionNumbers, HibernateParallelCallback<T> callback) throws GwtUtilException {
+        return execParallel(sessionNumbers, parallelExecutor(), callback);
+    }
+
+    /**
+     * Like {@link #exec(int[], HibernateMultiSessionCallback)} but the sessions are opened concurrently and the callback may query the
+     * databases concurrently with {@link ParallelSessions#submit} and {@link ParallelSessions#invokeAll}. When the callback returns and
+     * all its tasks are finished the transactions are committed one by one in the order of sessionNumbers. If the callback or a commit
+     * fails the transactions not committed yet are rolled back. There's no two-phase commit so if a commit fails the earlier ones stay
+     * committed, put the most likely to fail database first.
+     * 
+     * @param sessionNumbers
+     *            session factory numbers
+     * @param executor
+     *            executor to run the database tasks in, should have a thread per session at least
+     * @param callback
+     *            callback
+     * @return callback result
+     */
+    public static <T> T execParallel(int[] sessionNumbers, ExecutorService executor, HibernateParallelCallback<T> callback)
+            throws GwtUtilException {
+        Session[] sessions = openParallel(sessionNumbers, executor);
+        ParallelSessions parallelSessions = new ParallelSessions(sessions, executor);
+        int committed = 0;
+        try {
+            T result;
+            try {
+                result = callback.run(parallelSessions);
+            } finally {
+                parallelSessions.awaitSubmitted();
+            }
+            for (; committed < sessionNumbers.length; committed++) {
+                if (sessions[committed] != null && sessions[committed].getTransaction().isActive()) {
+                    sessions[committed].getTransaction().commit();
+                }
+            }
+            return result;
+        } catch (Exception e) {
+            for (int number = committed; number < sessionNumbers.length; number++) {
+                if (sessions[number] != null && sessions[number].getTransaction().isActive()) {
+                    try {
+                        sessions[number].getTransaction().rollback();
+                    } catch (RuntimeException rollbackException) {
+                        e.addSuppressed(rollbackException);
+                    }
+                }
+            }
+            throw e;
+        } finally {
+            for (Session session : sessions) {
+                if (session != null) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the sessions concurrently. If an opening fails or the caller is interrupted the other openings are cancelled and all the
+     * sessions opened, even after that, are closed.
+     */
+    private static Session[] openParallel(int[] sessionNumbers, ExecutorService executor) throws GwtUtilException {
+        Session[] sessions = new Session[sessionNumbers.length];
+        // guarded by sessions, set when the opened sessions are closed so the late ones close themselves
+        boolean[] abandoned = { false };
+        List<Future<?>> opening = new ArrayList<>(sessionNumbers.length);
+        for (int number = 0; number < sessionNumbers.length; number++) {
+            SessionFactory sessionFactory = HibernateUtil.getSessionFactory(sessionNumbers[number]);
+            if (sessionFactory != null) {
+                int index = number;
+                opening.add(executor.submit(() -> {
+                    Session session = openSession(sessionFactory, false);
+                    synchronized (sessions) {
+                        if (!abandoned[0]) {
+                            sessions[index] = session;
+                            return null;
+                        }
+                    }
+                    discard(session);
+                    return null;
+                }));
+            }
+        }
+        try {
+            for (Future<?> future : opening) {
+                ParallelSessions.await(future);
+            }
+            return sessions;
+        } catch (GwtUtilException | RuntimeException | Error e) {
+            for (Future<?> future : opening) {
+                future.cancel(true);
+            }
+            synchronized (sessions) {
+                abandoned[0] = true;
+                for (Session session : sessions) {
+                    if (session != null) {
+                        try {
+                            discard(session);
+                        } catch (RuntimeException closeException) {
+                            e.addSuppressed(closeException);
+                        }
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static void discard(Session session) {
+        try {
+            if (session.getTransaction().isActive()) {
+                session.getTransaction().rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private static synchronized ExecutorService parallelExecutor() {
+        if (parallelExecutor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            parallelExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "hibernate-parallel-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return parallelExecutor;
+    }
+
     public static List<SessionFactory> getSessionFactories() {
         return sessionFactory;
     }
@@ -173,12 +530,40 @@ public class HibernateUtil {
         return null;
     }
 
+    /**
+     * @return pool metrics of the session factories in the order of {@link #getSessionFactories()}, null for the factories not using
+     *         {@link PooledConnectionProvider}
+     */
+    public static List<PoolMetrics> getPoolMetrics() {
+        List<PoolMetrics> result = new ArrayList<>(sessionFactory.size());
+        for (SessionFactory factory : sessionFactory) {
+            ConnectionProvider provider = connectionProvider(factory);
+            result.add(provider instanceof PooledConnectionProvider ? ((PooledConnectionProvider) provider).getMetrics() : null);
+        }
+        return result;
+    }
+
     public static void initSessionFactory(String cfgFilename) {
+        initSessionFactory(cfgFilename, null);
+    }
+
+    /**
+     * Creates the session factory with the next index.
+     * 
+     * @param cfgFilename
+     *            Hibernate config file
+     * @param settings
+     *            settings overriding the config file, e.g. {@link PooledConnectionProvider#settings(int, int)}, may be null
+     */
+    public static void initSessionFactory(String cfgFilename, Properties settings) {
         ServiceRegistry serviceRegistry;
         try {
             // Create the SessionFactory from hibernate.cfg.xml
             Configuration configuration = new Configuration();
             configuration.configure(cfgFilename);
+            if (settings != null) {
+                configuration.addProperties(settings);
+            }
             serviceRegistry = new StandardServiceRegistryBuilder().applySettings(configuration.getProperties()).build();
             sessionFactory.add(configuration.buildSessionFactory(serviceRegistry));
         } catch (Exception ex) {
@@ -237,6 +622,15 @@ public class HibernateUtil {
     @SuppressWarnings("unchecked")
     public static <H> List<H> queryList(final String query, String[] paramNames, Object[] paramValues, Session session,
             final ListQueryFilter filter) throws LogicException {
+        Query hqlQuery = createQuery(query, paramNames, paramValues, session, filter).setCacheable(true);
+        if (filter != null && filter.cacheRegion != null) {
+            hqlQuery.setCacheRegion(filter.cacheRegion);
+        }
+        return (List<H>) hqlQuery.list();
+    }
+
+    private static Query createQuery(String query, String[] paramNames, Object[] paramValues, Session session, ListQueryFilter filter)
+            throws LogicException {
         final HashMap<String, Object> params = new HashMap<>();
         if (paramNames != null && paramValues != null) {
             if (paramNames.length != paramValues.length) {
@@ -249,7 +643,253 @@ public class HibernateUtil {
         if (filter != null) {
             filter.applyFilter(session);
         }
-        return (List<H>) session.createQuery(query).setProperties(params).setCacheable(true).list();
+        return session.createQuery(query).setProperties(params);
+    }
+
+    public static <D> long queryForEach(final String query, final String[] paramNames, final Object[] paramValues, final Class<D> clazz,
+            final HibernateRowCallback<D> callback) throws GwtUtilException {
+        return HibernateUtil.exec(
+                session -> queryForEach(query, paramNames, paramValues, session, null, clazz, STREAM_FETCH_SIZE, callback));
+    }
+
+    /**
+     * Runs the query and passes the results to the callback one by one without building the result list. The rows are read with a
+     * forward-only cursor and loaded as read-only, the session is flushed and cleared every fetchSize rows so the memory used doesn't
+     * depend on the result size. Entities loaded to the session before the call are detached as well.
+     * <p>
+     * MySQL Connector/J reads the whole result to memory by default and ignores the fetch size. Add useCursorFetch=true to the JDBC URL
+     * (jdbc:mysql://host/db?useCursorFetch=true) to make it fetch the rows by fetchSize with a server-side cursor. The driver's own
+     * streaming mode (fetch size {@link Integer#MIN_VALUE}) isn't used because it blocks all other statements of the connection till
+     * the result is read, so the callback couldn't load lazy associations.
+     * 
+     * @param query
+     *            HQL query
+     * @param paramNames
+     *            query parameter names, may be null
+     * @param paramValues
+     *            query parameter values, may be null
+     * @param session
+     *            session to use
+     * @param filter
+     *            filters to apply, may be null
+     * @param clazz
+     *            DTO class to map the rows to, null to pass the entities (or Object[] for multi-column results) as is
+     * @param fetchSize
+     *            JDBC fetch size and the number of rows between the session clearings
+     * @param callback
+     *            row handler
+     * @return number of processed rows
+     * @throws GwtUtilException
+     */
+    @SuppressWarnings("unchecked")
+    public static <D> long queryForEach(final String query, String[] paramNames, Object[] paramValues, Session session,
+            final ListQueryFilter filter, Class<D> clazz, int fetchSize, HibernateRowCallback<D> callback) throws GwtUtilException {
+        ScrollableResults results = createQuery(query, paramNames, paramValues, session, filter).setReadOnly(true).setFetchSize(fetchSize)
+                .scroll(ScrollMode.FORWARD_ONLY);
+        long count = 0;
+        try {
+            while (results.next()) {
+                callback.process((D) mapRow(results.get(), clazz));
+                if (++count % fetchSize == 0) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+        } finally {
+            results.close();
+        }
+        return count;
+    }
+
+    /**
+     * Same as
+     * {@link #queryForEach(String, String[], Object[], Session, ListQueryFilter, Class, int, HibernateRowCallback)} but returns a lazy
+     * stream. The stream holds an open cursor and should be closed (use try-with-resources) before the session is closed. MySQL needs
+     * useCursorFetch=true in the JDBC URL to fetch the rows by fetchSize as well.
+     * 
+     * @return stream of the mapped rows
+     * @throws LogicException
+     */
+    @SuppressWarnings("unchecked")
+    public static <D> Stream<D> queryStream(final String query, String[] paramNames, Object[] paramValues, final Session session,
+            final ListQueryFilter filter, final Class<D> clazz, final int fetchSize) throws LogicException {
+        final ScrollableResults results = createQuery(query, paramNames, paramValues, session, filter).setReadOnly(true)
+                .setFetchSize(fetchSize).scroll(ScrollMode.FORWARD_ONLY);
+        Iterator<D> iterator = new Iterator<D>() {
+
+            private long count = 0;
+            private Boolean hasNext;
+
+            @Override
+            public boolean hasNext() {
+                if (hasNext == null) {
+                    hasNext = results.next();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public D next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                hasNext = null;
+                if (count > 0 && count % fetchSize == 0) {
+                    // the previous batch has been consumed by now
+                    session.flush();
+                    session.clear();
+                }
+                count++;
+                return (D) mapRow(results.get(), clazz);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(results::close);
+    }
+
+    private static Object mapRow(Object[] row, Class<?> clazz) {
+        Object value = row.length == 1 ? row[0] : row;
+        return clazz == null ? value : mapModel(value, clazz);
+    }
+
+    public static <D> KeysetPage<D> queryPage(final KeysetQuery query, final String cursor, final int pageSize, final Class<D> clazz)
+            throws GwtUtilException {
+        return HibernateUtil.exec(session -> queryPage(query, cursor, pageSize, clazz, session));
+    }
+
+    /**
+     * Returns the page of the keyset query following the cursor.
+     * 
+     * @param query
+     *            keyset query
+     * @param cursor
+     *            cursor from the previous page, null for the first page
+     * @param pageSize
+     *            maximum number of items in the page
+     * @param clazz
+     *            DTO class to map the entities to, null to return the entities
+     * @param session
+     *            session to use
+     * @return page of the items with the cursor of its last item
+     * @throws LogicException
+     *             if the cursor is invalid
+     * @throws IllegalArgumentException
+     *             if the ordering keys aren't set with {@link KeysetQuery#orderBy(String...)}
+     */
+    @SuppressWarnings("unchecked")
+    public static <D> KeysetPage<D> queryPage(KeysetQuery query, String cursor, int pageSize, Class<D> clazz, Session session)
+            throws LogicException {
+        if (query.keys == null) {
+            throw new IllegalArgumentException("Keyset query has no ordering keys, call orderBy()");
+        }
+        Query hqlQuery = session.createQuery(query.build(cursor != null)).setProperties(query.params).setMaxResults(pageSize + 1);
+        if (cursor != null) {
+            Object[] keys = decodeCursor(cursor);
+            if (keys.length != query.keys.length) {
+                throw new LogicException("Invalid cursor: " + cursor);
+            }
+            for (int i = 0; i < keys.length; i++) {
+                hqlQuery.setParameter(CURSOR_PARAM + i, keys[i]);
+            }
+        }
+        List<Object[]> rows = hqlQuery.list();
+        boolean hasMore = rows.size() > pageSize;
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
+        }
+        List<D> items = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            items.add(clazz == null ? (D) row[0] : mapModel(row[0], clazz));
+        }
+        String nextCursor = rows.isEmpty() ? cursor : encodeCursor(Arrays.copyOfRange(rows.get(rows.size() - 1), 1, query.keys.length + 1));
+        return new KeysetPage<>(items, nextCursor, hasMore);
+    }
+
+    private static String encodeCursor(Object[] keys) throws LogicException {
+        StringBuilder sb = new StringBuilder();
+        for (Object key : keys) {
+            String value;
+            char type;
+            if (key instanceof Long) {
+                type = 'L';
+                value = key.toString();
+            } else if (key instanceof Integer) {
+                type = 'I';
+                value = key.toString();
+            } else if (key instanceof String) {
+                type = 'S';
+                value = (String) key;
+            } else if (key instanceof Timestamp) {
+                // keeps the nanoseconds lost by getTime()
+                type = 'T';
+                value = ((Timestamp) key).getTime() + "." + ((Timestamp) key).getNanos();
+            } else if (key instanceof Date) {
+                type = 'D';
+                value = Long.toString(((Date) key).getTime());
+            } else if (key instanceof BigDecimal) {
+                type = 'N';
+                value = key.toString();
+            } else if (key instanceof Double) {
+                type = 'F';
+                value = key.toString();
+            } else if (key instanceof Boolean) {
+                type = 'B';
+                value = key.toString();
+            } else {
+                throw new LogicException("Unsupported keyset key: " + key);
+            }
+            sb.append(type).append(value.length()).append(':').append(value);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Object[] decodeCursor(String cursor) throws LogicException {
+        List<Object> keys = new ArrayList<>();
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int pos = 0;
+            while (pos < decoded.length()) {
+                char type = decoded.charAt(pos);
+                int colon = decoded.indexOf(':', pos);
+                int length = Integer.parseInt(decoded.substring(pos + 1, colon));
+                String value = decoded.substring(colon + 1, colon + 1 + length);
+                pos = colon + 1 + length;
+                switch (type) {
+                case 'L':
+                    keys.add(Long.valueOf(value));
+                    break;
+                case 'I':
+                    keys.add(Integer.valueOf(value));
+                    break;
+                case 'S':
+                    keys.add(value);
+                    break;
+                case 'D':
+                    keys.add(new Date(Long.parseLong(value)));
+                    break;
+                case 'T':
+                    int dot = value.indexOf('.');
+                    Timestamp timestamp = new Timestamp(Long.parseLong(value.substring(0, dot)));
+                    timestamp.setNanos(Integer.parseInt(value.substring(dot + 1)));
+                    keys.add(timestamp);
+                    break;
+                case 'N':
+                    keys.add(new BigDecimal(value));
+                    break;
+                case 'F':
+                    keys.add(Double.valueOf(value));
+                    break;
+                case 'B':
+                    keys.add(Boolean.valueOf(value));
+                    break;
+                default:
+                    throw new LogicException("Invalid cursor: " + cursor);
+                }
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new LogicException("Invalid cursor: " + cursor);
+        }
+        return keys.toArray();
     }
 
     public static void commitTransaction(Session session) {
@@ -270,12 +910,13 @@ public class HibernateUtil {
     }
 
     public static <D extends HasId, H> D saveObject(final H hib, final Class<D> targetClass) throws GwtUtilException {
-        return HibernateUtil.exec(session -> mapModel(session.merge(hib), targetClass));
+        return execAndEvict(hib.getClass(), session -> mapModel(session.merge(hib), targetClass));
     }
 
     @SuppressWarnings("unchecked")
     public static <D extends HasId, H> D saveDTO(final D dto, final Class<H> targetClass) throws GwtUtilException {
-        return HibernateUtil.exec(session -> (D) mapModel(HibernateUtil.saveObject(dto, targetClass, true, session), dto.getClass()));
+        return execAndEvict(targetClass,
+                session -> (D) mapModel(HibernateUtil.saveObject(dto, targetClass, true, session), dto.getClass()));
     }
 
     public static <D extends HasId, H> H saveObject(final D objectDTO, final Class<H> classHIB) throws GwtUtilException {
@@ -284,7 +925,7 @@ public class HibernateUtil {
 
     public static <D extends HasId, H> H saveObject(final D objectDTO, final Class<H> classHIB, final boolean setId)
             throws GwtUtilException {
-        return HibernateUtil.exec(session -> saveObject(objectDTO, classHIB, setId, session));
+        return execAndEvict(classHIB, session -> saveObject(objectDTO, classHIB, setId, session));
     }
 
     @SuppressWarnings("unchecked")
@@ -302,9 +943,80 @@ public class HibernateUtil {
         }
     }
 
+    public static <D extends HasId, H> List<Long> saveAll(final Collection<D> dtos, final Class<H> classHIB) throws GwtUtilException {
+        return execAndEvict(classHIB, session -> saveAll(dtos, classHIB, session));
+    }
+
+    public static <D extends HasId, H> List<Long> saveAll(Collection<D> dtos, Class<H> classHIB, Session session) {
+        return saveAll(dtos, classHIB, batchSize(session), session);
+    }
+
+    private static int batchSize(Session session) {
+        int batchSize = ((SessionFactoryImplementor) session.getSessionFactory()).getSettings().getJdbcBatchSize();
+        return batchSize > 0 ? batchSize : DEFAULT_SAVE_BATCH_SIZE;
+    }
+
+    /**
+     * Saves the DTOs in the current transaction. The new objects are inserted first and the existing are updated after them so the
+     * statements of the same kind go in a row and can be batched by JDBC, the session is flushed and cleared every batchSize objects
+     * to keep its memory footprint constant. Set hibernate.jdbc.batch_size in the config to enable the JDBC batching, it's not
+     * possible for the entities with the identity id generator. The existing objects are updated without reading them, the session is
+     * flushed and cleared before that so all the entities loaded to it before are detached.
+     * 
+     * @param dtos
+     *            DTOs to save
+     * @param classHIB
+     *            Hibernate entity class
+     * @param batchSize
+     *            number of objects to flush at once, should be equal to hibernate.jdbc.batch_size
+     * @param session
+     *            session to use
+     * @return ids of the saved objects in the order of the DTOs
+     */
+    public static <D extends HasId, H> List<Long> saveAll(Collection<D> dtos, Class<H> classHIB, int batchSize, Session session) {
+        session.flush();
+        session.clear();
+        CacheMode cacheMode = session.getCacheMode();
+        session.setCacheMode(CacheMode.IGNORE);
+        try {
+            Long[] ids = new Long[dtos.size()];
+            int count = 0;
+            int i = 0;
+            for (D dto : dtos) {
+                if (dto.getId() == null) {
+                    ids[i] = (Long) session.save(mapModel(dto, classHIB));
+                    count = flushBatch(session, count, batchSize);
+                }
+                i++;
+            }
+            i = 0;
+            for (D dto : dtos) {
+                if (dto.getId() != null) {
+                    session.update(mapModel(dto, classHIB));
+                    ids[i] = dto.getId();
+                    count = flushBatch(session, count, batchSize);
+                }
+                i++;
+            }
+            session.flush();
+            session.clear();
+            return Arrays.asList(ids);
+        } finally {
+            session.setCacheMode(cacheMode);
+        }
+    }
+
+    private static int flushBatch(Session session, int count, int batchSize) {
+        if (++count % batchSize == 0) {
+            session.flush();
+            session.clear();
+        }
+        return count;
+    }
+
     @SuppressWarnings("unchecked")
     public static <T> T saveObject(final T object) throws GwtUtilException {
-        return HibernateUtil.exec(session -> (T) session.merge(object));
+        return execAndEvict(object.getClass(), session -> (T) session.merge(object));
     }
 
     public static <T> T tryGetObject(Long id, Class<T> clazz, Session session, String failText) throws LogicException {
@@ -359,10 +1071,59 @@ public class HibernateUtil {
 
     public static <H extends HasId, D extends HasId> H saveOrUpdateDTO(final D dto, final Class<H> clazz)
             throws GwtUtilException {
-        return HibernateUtil.exec(session -> saveOrUpdateDTO(session, dto, clazz));
+        return execAndEvict(clazz, session -> saveOrUpdateDTO(session, dto, clazz));
     }
 
     public static <H extends HasId> H saveOrUpdateHIB(final H entity) throws GwtUtilException {
-        return HibernateUtil.exec(session -> saveOrUpdateHIB(session, entity));
+        return execAndEvict(entity.getClass(), session -> saveOrUpdateHIB(session, entity));
+    }
+
+    /**
+     * Creates a new entity or updates only the non-null properties of the existing one with a single UPDATE statement, without reading
+     * it like {@link #saveOrUpdateHIB(Session, HasId)} does. Collections and embedded components aren't updated, primitive properties
+     * are never null so they're always written. Instances of the entity already loaded to the session aren't refreshed.
+     * 
+     * @param session
+     * @param entity
+     *            Hibernate entity
+     * @return entity id
+     * @throws LogicException
+     *             if there's no entity with this id
+     */
+    public static <H extends HasId> Long saveOrUpdateNonNull(Session session, H entity) throws LogicException {
+        return PartialUpdates.saveOrUpdate(session, entity);
+    }
+
+    /**
+     * Same as {@link #saveOrUpdateNonNull(Session, HasId)} for every entity but the updates setting the same properties are sent in JDBC
+     * batches of hibernate.jdbc.batch_size or 50 statements. The session is flushed before the updates. The entities mapped to several
+     * tables or with a non-numeric version are updated one by one.
+     * 
+     * @return entity ids in the order of the entities
+     * @throws LogicException
+     *             if there's no entity with some id
+     */
+    public static <H extends HasId> List<Long> saveOrUpdateNonNull(Session session, Collection<H> entities) throws LogicException {
+        return PartialUpdates.saveOrUpdate(session, entities, batchSize(session));
+    }
+
+    public static <H extends HasId, D extends HasId> Long saveOrUpdateNonNullDTO(Session session, D dto, Class<H> clazz)
+            throws LogicException {
+        return PartialUpdates.saveOrUpdate(session, mapModel(dto, clazz));
+    }
+
+    public static <H extends HasId, D extends HasId> List<Long> saveOrUpdateNonNullDTO(Session session, Collection<D> dtos,
+            Class<H> clazz) throws LogicException {
+        return PartialUpdates.saveOrUpdate(session, mapArray(dtos, clazz), batchSize(session));
+    }
+
+    public static <H extends HasId, D extends HasId> Long saveOrUpdateNonNullDTO(final D dto, final Class<H> clazz)
+            throws GwtUtilException {
+        return execAndEvict(clazz, session -> saveOrUpdateNonNullDTO(session, dto, clazz));
+    }
+
+    public static <H extends HasId, D extends HasId> List<Long> saveOrUpdateNonNullDTO(final Collection<D> dtos, final Class<H> clazz)
+            throws GwtUtilException {
+        return execAndEvict(clazz, session -> saveOrUpdateNonNullDTO(session, dtos, clazz));
     }
 }
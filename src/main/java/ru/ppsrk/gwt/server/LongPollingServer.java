@@ -1,8 +1,17 @@
 package ru.ppsrk.gwt.server;
 
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import ru.ppsrk.gwt.client.GwtUtilException;
 import ru.ppsrk.gwt.client.LongPollingClient;
@@ -10,9 +19,196 @@ import ru.ppsrk.gwt.client.LongPollingClient.LongPollingAsyncCallback;
 
 public abstract class LongPollingServer<T> implements AutoCloseable {
 
+    /**
+     * Poll of a single asynchronous client, keeps the client state that {@link LongPollingServer#exec()} keeps in thread locals.
+     */
+    public interface Poll<T> {
+        /**
+         * Same as {@link LongPollingServer#exec()}, may be called from any thread but never concurrently for the same client.
+         */
+        T poll() throws GwtUtilException;
+
+        /**
+         * @return topics whose {@link LongPollingServer#signal(String)} wakes this client, {@link LongPollingServer#signal()} wakes it
+         *         anyway
+         */
+        default Collection<String> getTopics() {
+            return Collections.emptySet();
+        }
+    }
+
+    public interface ResultCallback<T> {
+        /**
+         * @param result
+         *            poll result or null if the period has passed
+         */
+        void onResult(T result);
+
+        void onFailure(Throwable caught);
+    }
+
+    /**
+     * Asynchronous client started with {@link LongPollingServer#startAsync(Poll, ResultCallback)}.
+     */
+    public interface AsyncPolling {
+        /**
+         * Stops polling without calling the callback, use it when the request is gone.
+         */
+        void cancel();
+    }
+
+    // shared by all the servers, polls the asynchronous clients on signals and completes them on timeouts
+    private static final ScheduledExecutorService asyncExecutor;
+
+    static {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, runnable -> {
+            Thread thread = new Thread(runnable, "long-polling-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        asyncExecutor = executor;
+    }
+
     protected long period;
     protected long execDelay;
-    private Collection<Thread> workingThreads = new HashSet<>();
+    private Collection<Thread> workingThreads = ConcurrentHashMap.newKeySet();
+    private Collection<AsyncClient> asyncClients = ConcurrentHashMap.newKeySet();
+    // all the waiting clients and the clients by their topics
+    private final Collection<Client> clients = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Collection<Client>> topicClients = new ConcurrentHashMap<>();
+
+    private abstract class Client {
+        final Collection<String> topics;
+
+        Client(Collection<String> topics) {
+            this.topics = topics;
+        }
+
+        /**
+         * Makes the client poll again.
+         */
+        abstract void wake();
+    }
+
+    private class BlockingClient extends Client {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition signalled = lock.newCondition();
+        // guarded by lock, incremented on every signal so the client can tell if it missed one
+        private long signals = 0;
+
+        BlockingClient(Collection<String> topics) {
+            super(topics);
+        }
+
+        long getSignals() {
+            lock.lock();
+            try {
+                return signals;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void await(long seen, long nanos) throws InterruptedException {
+            lock.lock();
+            try {
+                while (signals == seen && nanos > 0) {
+                    nanos = signalled.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void wake() {
+            lock.lock();
+            try {
+                signals++;
+                signalled.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private class AsyncClient extends Client implements AsyncPolling {
+        private final Poll<T> poll;
+        private final ResultCallback<T> callback;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AtomicBoolean checkPending = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+        private volatile ScheduledFuture<?> repoll;
+
+        AsyncClient(Poll<T> poll, ResultCallback<T> callback) {
+            super(poll.getTopics());
+            this.poll = poll;
+            this.callback = callback;
+        }
+
+        @Override
+        void wake() {
+            // the signals coming before the check starts are coalesced, the ones coming during it cause another one
+            if (checkPending.compareAndSet(false, true)) {
+                asyncExecutor.execute(() -> {
+                    checkPending.set(false);
+                    check();
+                });
+            }
+        }
+
+        synchronized void check() {
+            if (done.get()) {
+                return;
+            }
+            T result;
+            try {
+                result = poll.poll();
+            } catch (Throwable e) {
+                if (finish()) {
+                    callback.onFailure(e);
+                }
+                return;
+            }
+            if (result != null) {
+                complete(result);
+            }
+        }
+
+        void complete(T result) {
+            if (finish()) {
+                callback.onResult(result);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            finish();
+        }
+
+        private boolean finish() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            asyncClients.remove(this);
+            unregister(this);
+            cancelTimers();
+            return true;
+        }
+
+        void cancelTimers() {
+            cancel(timeout);
+            cancel(repoll);
+        }
+
+        private void cancel(ScheduledFuture<?> future) {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
 
     /**
      * Create a new long polling server
@@ -25,7 +221,10 @@ public abstract class LongPollingServer<T> implements AutoCloseable {
      *            granularity of the polling process, i.e. how fast you can
      *            react to events. Usually a relatively small number like 100
      *            ms, so the app responds to client in 100 ms at max after
-     *            something changes. Too low delay may cause a high load.
+     *            something changes. Too low delay may cause a high load. A
+     *            {@link #signal()} or {@link #signal(String)} wakes the
+     *            waiting clients immediately, if all the changes are
+     *            signalled pass 0 to not poll at all.
      */
 
     public LongPollingServer(long period, long execDelay) {
@@ -59,17 +258,117 @@ public abstract class LongPollingServer<T> implements AutoCloseable {
         }
     }
 
+    /**
+     * Start the long polling operation without blocking the calling thread. The callback is called from the current thread if there's a
+     * result already, otherwise from one of the shared long polling threads on a {@link #signal()} or when the period passes. Use it with
+     * the Servlet 3 asynchronous requests, see {@link AsyncLongPollingServlet}.
+     * 
+     * @param poll
+     *            poll of this client
+     * @param callback
+     *            callback to receive the result
+     * @return the client to cancel if the request is completed or broken by the container
+     */
+    public AsyncPolling startAsync(Poll<T> poll, ResultCallback<T> callback) {
+        AsyncClient client = new AsyncClient(poll, callback);
+        // register before the first poll so a signal coming during it isn't lost
+        asyncClients.add(client);
+        register(client);
+        client.timeout = asyncExecutor.schedule(() -> client.complete(null), period, TimeUnit.MILLISECONDS);
+        if (execDelay > 0) {
+            client.repoll = asyncExecutor.scheduleWithFixedDelay(client::check, execDelay, execDelay, TimeUnit.MILLISECONDS);
+        }
+        if (client.done.get()) {
+            // completed by a signal before the timers were set
+            client.cancelTimers();
+            return client;
+        }
+        client.check();
+        return client;
+    }
+
+    /**
+     * @return number of the asynchronous clients waiting for the result
+     */
+    public int getAsyncClientCount() {
+        return asyncClients.size();
+    }
+
+    private void register(Client client) {
+        clients.add(client);
+        for (String topic : client.topics) {
+            topicClients.compute(topic, (key, subscribers) -> {
+                Collection<Client> result = subscribers != null ? subscribers : ConcurrentHashMap.newKeySet();
+                result.add(client);
+                return result;
+            });
+        }
+    }
+
+    private void unregister(Client client) {
+        clients.remove(client);
+        for (String topic : client.topics) {
+            topicClients.computeIfPresent(topic, (key, subscribers) -> {
+                subscribers.remove(client);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+    /**
+     * Topics of the client polling in the current thread with {@link #start()}, see {@link #signal(String)}.
+     * 
+     * @return topics of the current client, empty by default
+     */
+    protected Collection<String> getTopics() {
+        return Collections.emptySet();
+    }
+
     protected T awaitResult() throws InterruptedException, GwtUtilException {
         long startTime = System.nanoTime();
         long nanoPeriod = TimeUnit.MILLISECONDS.toNanos(period);
-        while (System.nanoTime() - startTime < nanoPeriod) {
-            T result = exec();
-            if (result != null) {
-                return result;
+        long nanoDelay = TimeUnit.MILLISECONDS.toNanos(execDelay);
+        BlockingClient client = new BlockingClient(getTopics());
+        register(client);
+        try {
+            while (true) {
+                // read before exec() so a signal coming during it isn't lost
+                long seen = client.getSignals();
+                T result = exec();
+                if (result != null) {
+                    return result;
+                }
+                long remaining = nanoPeriod - (System.nanoTime() - startTime);
+                if (remaining <= 0) {
+                    return null;
+                }
+                client.await(seen, nanoDelay > 0 ? Math.min(remaining, nanoDelay) : remaining);
+            }
+        } finally {
+            unregister(client);
+        }
+    }
+
+    /**
+     * Wake up all the waiting clients to call {@link #exec()} again. Call this when something the clients wait for has changed.
+     */
+    public void signal() {
+        for (Client client : clients) {
+            client.wake();
+        }
+    }
+
+    /**
+     * Wake up only the waiting clients subscribed to the topic, see {@link #getTopics()} and {@link Poll#getTopics()}. Call this when
+     * something only those clients wait for has changed.
+     */
+    public void signal(String topic) {
+        Collection<Client> subscribers = topicClients.get(topic);
+        if (subscribers != null) {
+            for (Client client : subscribers) {
+                client.wake();
             }
-            Thread.sleep(execDelay);
         }
-        return null;
     }
 
     @Override
@@ -77,6 +376,9 @@ public abstract class LongPollingServer<T> implements AutoCloseable {
         for (Thread thread : workingThreads) {
             thread.interrupt();
         }
+        for (AsyncClient client : asyncClients) {
+            client.complete(null);
+        }
     }
 
     /**
@@ -85,9 +387,10 @@ public abstract class LongPollingServer<T> implements AutoCloseable {
      * case the polling loop continues. Return non-null to immediately break the
      * polling loop and return the value to the client. After dispatching it the
      * client restarts the loop. Avoid querying the database, using I/O and
-     * other slow operations in this method as it's usually called <b>10 and
-     * more times per second per client</b> to provide responsive UX and nearly
-     * realtime results.
+     * other slow operations in this method as it's called on every
+     * {@link #signal()} and every execDelay ms (<b>10 and more times per
+     * second per client</b> with the usual delay) to provide responsive UX and
+     * nearly realtime results.
      * 
      * @return
      * @throws GwtUtilException
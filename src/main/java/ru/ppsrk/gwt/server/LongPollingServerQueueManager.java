@@ -1,17 +1,49 @@
 package ru.ppsrk.gwt.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ru.ppsrk.gwt.client.GwtUtilException;
 import ru.ppsrk.gwt.dto.LongPollingMessage;
 
+/**
+ * Queue of the messages for the long polling clients. Every offered message gets a sequence number from the counter shared by all the
+ * queues, the clients send the sequence of the last received message to get only the messages after it. The counter starts from the
+ * clock so the sequences keep growing across the server restarts; a client sending a sequence the server hasn't reached yet (it's
+ * been restarted since the last received message) gets all the buffered messages.
+ * <p>
+ * The messages may be offered to a named topic, such a message is received only by the clients subscribed to it. Every topic has its
+ * own buffer so a poll reads only the topics of the client and the messages offered without a topic which are received by everyone,
+ * and an offered message wakes only the clients subscribed to its topic.
+ */
 public class LongPollingServerQueueManager<M extends LongPollingMessage> extends LongPollingServer<Collection<M>> {
 
-    private ConcurrentLinkedQueue<M> queue = new ConcurrentLinkedQueue<>();
+    // 4096 messages per millisecond of the downtime before the sequences of the previous run are reached again
+    private static final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() << 12);
 
+    private final MessageRing<M> ring = new MessageRing<>();
+    private final ConcurrentMap<String, MessageRing<M>> topicRings = new ConcurrentHashMap<>();
+    private final Object offerLock = new Object();
+    // guarded by offerLock
+    private long lastOfferTimestamp = 0;
+    private long lastSweepTimestamp = 0;
+    // sequence of the last message added to the buffers, the messages up to it are visible to the readers
+    private volatile long published = 0;
+
+    private ThreadLocal<Long> lastSequence = new ThreadLocal<>();
     private ThreadLocal<Long> lastTimestamp = new ThreadLocal<>();
+    private ThreadLocal<Collection<String>> subscribedTopics = new ThreadLocal<>();
     private ThreadLocal<Collection<M>> newMessages = ThreadLocal.withInitial(LinkedList::new);
 
     private long messagesTimeout;
@@ -23,11 +55,9 @@ public class LongPollingServerQueueManager<M extends LongPollingMessage> extends
      *            how many ms to wait before returning with no result. Usually a
      *            relatively big number like 30000 for 30 seconds.
      * @param execDelay
-     *            delay in ms between two subsequent polls. Represents
-     *            granularity of the polling process, i.e. how fast you can
-     *            react to events. Usually a relatively small number like 100
-     *            ms, so the app responds to client in 100 ms at max after
-     *            something changes. Too low delay may cause a high load.
+     *            delay in ms between two subsequent polls. The offered
+     *            messages wake the waiting clients immediately so it's not
+     *            needed, pass 0 to wait for the messages without polling.
      * @param messagesTimeout
      *            period in ms after which a message expires and is removed from
      *            the queue. Used to avoid race conditions with newly connected
@@ -41,37 +71,56 @@ public class LongPollingServerQueueManager<M extends LongPollingMessage> extends
         this.messagesTimeout = messagesTimeout;
     }
 
+    /**
+     * Set the sequence and the subscriptions. Call this before starting the server.
+     * 
+     * @param fromSequence
+     *            client-supplied sequence of the last received message, messages offered after it will be sent back. Null to get only
+     *            the messages offered from now on.
+     * @param topics
+     *            topics the client is subscribed to in addition to the messages without a topic
+     */
+    public void setSequence(Long fromSequence, String... topics) {
+        lastSequence.set(fromSequence != null ? fromSequence : published);
+        lastTimestamp.remove();
+        subscribedTopics.set(distinct(topics));
+    }
+
     /**
      * Set the timestamp. Call this before starting the server.
      * 
      * @param fromTimestamp
      *            client-supplied timestamp value, messages received after it will be sent back.
+     * @deprecated the messages queued in the same millisecond as the last received one are lost, use
+     *             {@link #setSequence(Long, String...)}
      */
+    @Deprecated
     public void setTimestamp(Long fromTimestamp) {
         lastTimestamp.set(fromTimestamp);
+        lastSequence.remove();
+        subscribedTopics.remove();
+    }
+
+    @Override
+    protected Collection<String> getTopics() {
+        Collection<String> topics = subscribedTopics.get();
+        return topics != null ? topics : Collections.<String> emptySet();
     }
 
     @Override
     public Collection<M> exec() throws GwtUtilException {
-        if (lastTimestamp.get() == null) {
-            lastTimestamp.set(System.currentTimeMillis());
-        }
         Collection<M> result = newMessages.get();
         if (!result.isEmpty()) {
             result.clear();
         }
-        long maxTimestamp = lastTimestamp.get();
-        for (M message : queue) {
-            if (System.currentTimeMillis() - message.getTimestamp() > messagesTimeout) {
-                queue.remove(message);
-            } else if (message.getTimestamp() > lastTimestamp.get()) {
-                result.add(message);
-                if (message.getTimestamp() > maxTimestamp) {
-                    maxTimestamp = message.getTimestamp();
-                }
+        if (lastSequence.get() == null && lastTimestamp.get() != null) {
+            lastTimestamp.set(collectByTimestamp(lastTimestamp.get(), getTopics(), result));
+        } else {
+            if (lastSequence.get() == null) {
+                lastSequence.set(published);
             }
+            lastSequence.set(collect(lastSequence.get(), getTopics(), result));
         }
-        lastTimestamp.set(maxTimestamp);
         if (!result.isEmpty()) {
             return result;
         } else {
@@ -79,7 +128,166 @@ public class LongPollingServerQueueManager<M extends LongPollingMessage> extends
         }
     }
 
+    /**
+     * Poll for {@link #startAsync(Poll, ResultCallback)}.
+     * 
+     * @param fromSequence
+     *            client-supplied sequence of the last received message, messages offered after it will be sent back. Null to get only
+     *            the messages offered from now on.
+     * @param topics
+     *            topics the client is subscribed to in addition to the messages without a topic
+     */
+    public Poll<Collection<M>> poll(Long fromSequence, String... topics) {
+        Collection<String> subscription = distinct(topics);
+        long from = fromSequence != null ? fromSequence : published;
+        return new Poll<Collection<M>>() {
+            private long cursor = from;
+
+            @Override
+            public Collection<M> poll() {
+                Collection<M> result = new LinkedList<>();
+                cursor = collect(cursor, subscription, result);
+                return result.isEmpty() ? null : result;
+            }
+
+            @Override
+            public Collection<String> getTopics() {
+                return subscription;
+            }
+        };
+    }
+
+    private static Collection<String> distinct(String[] topics) {
+        if (topics == null || topics.length == 0) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(topics)));
+    }
+
+    /**
+     * Adds the messages after the sequence to the result skipping the expired ones.
+     * 
+     * @return sequence to continue from
+     */
+    private long collect(long fromSequence, Collection<String> topics, Collection<M> result) {
+        return read(fromSequence, System.currentTimeMillis() - messagesTimeout, topics, result);
+    }
+
+    private long collectByTimestamp(long fromTimestamp, Collection<String> topics, Collection<M> result) {
+        read(0, Math.max(fromTimestamp + 1, System.currentTimeMillis() - messagesTimeout), topics, result);
+        long maxTimestamp = fromTimestamp;
+        for (M message : result) {
+            maxTimestamp = Math.max(maxTimestamp, message.getTimestamp());
+        }
+        return maxTimestamp;
+    }
+
+    /**
+     * Reads the common buffer and the buffers of the topics merging the messages by their sequence. Only the messages published before
+     * the read are taken from every buffer so a message added to a buffer after it has been read can't be skipped by the returned
+     * sequence.
+     * 
+     * @return sequence to continue from
+     */
+    private long read(long fromSequence, long minTime, Collection<String> topics, Collection<M> result) {
+        long toSequence = published;
+        if (fromSequence > toSequence) {
+            // the cursor of the previous server run, the client missed everything offered since the restart
+            fromSequence = 0;
+        }
+        if (toSequence <= fromSequence) {
+            return fromSequence;
+        }
+        if (topics.isEmpty()) {
+            ring.read(fromSequence, toSequence, minTime, result);
+            return toSequence;
+        }
+        List<M> messages = new ArrayList<>();
+        ring.read(fromSequence, toSequence, minTime, messages);
+        int sources = messages.isEmpty() ? 0 : 1;
+        for (String topic : topics) {
+            MessageRing<M> topicRing = topicRings.get(topic);
+            if (topicRing != null) {
+                int read = messages.size();
+                topicRing.read(fromSequence, toSequence, minTime, messages);
+                if (messages.size() > read) {
+                    sources++;
+                }
+            }
+        }
+        if (sources > 1) {
+            messages.sort(Comparator.comparingLong(LongPollingMessage::getSequence));
+        }
+        result.addAll(messages);
+        return toSequence;
+    }
+
+    /**
+     * Queues the message for all the clients and wakes the waiting ones. The message gets the next sequence number and the time it was
+     * queued, never less than that of the previous message, and the expired messages are removed.
+     */
     public void offer(M message) {
-        queue.offer(message);
+        synchronized (offerLock) {
+            add(ring, message);
+        }
+        signal();
+    }
+
+    /**
+     * Queues the message for the clients subscribed to the topic and wakes the waiting ones.
+     */
+    public void offer(String topic, M message) {
+        synchronized (offerLock) {
+            add(topicRings.computeIfAbsent(topic, key -> new MessageRing<>()), message);
+        }
+        signal(topic);
+    }
+
+    // called under offerLock
+    private void add(MessageRing<M> target, M message) {
+        long now = System.currentTimeMillis();
+        lastOfferTimestamp = Math.max(lastOfferTimestamp, now);
+        message.setTimestamp(lastOfferTimestamp);
+        message.setSequence(sequence.incrementAndGet());
+        target.trim(now - messagesTimeout);
+        target.add(message, message.getSequence(), lastOfferTimestamp);
+        published = message.getSequence();
+        if (now - lastSweepTimestamp >= messagesTimeout) {
+            sweep(now - messagesTimeout);
+            lastSweepTimestamp = now;
+        }
+    }
+
+    /**
+     * Trims all the buffers once per the messages timeout and drops the topics with no messages left so the idle topics don't keep the
+     * expired messages. Called under offerLock so no message is added to a topic being dropped.
+     */
+    private void sweep(long minTime) {
+        ring.trim(minTime);
+        for (Iterator<Entry<String, MessageRing<M>>> iterator = topicRings.entrySet().iterator(); iterator.hasNext();) {
+            MessageRing<M> topicRing = iterator.next().getValue();
+            topicRing.trim(minTime);
+            if (topicRing.size() == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of the queued messages of all the topics including the expired ones not removed yet
+     */
+    public int size() {
+        int size = ring.size();
+        for (MessageRing<M> topicRing : topicRings.values()) {
+            size += topicRing.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of the topics having messages
+     */
+    public int getTopicCount() {
+        return topicRings.size();
     }
 }
@@ -0,0 +1,122 @@
+package ru.ppsrk.gwt.server;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Growable ring buffer of the long polling messages ordered by their keys. Readers find their position with a binary search and copy
+ * only the messages after it, the expired messages are trimmed from the head by the writer.
+ *
+ * @param <M>
+ *            message type
+ */
+final class MessageRing<M> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Object[] messages = new Object[INITIAL_CAPACITY];
+    // non-decreasing message keys and add times
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    // absolute positions of the oldest and the next message
+    private long head = 0;
+    private long tail = 0;
+
+    /**
+     * Appends the message, the key and the time should be not less than those of the previous message.
+     */
+    void add(M message, long key, long time) {
+        lock.writeLock().lock();
+        try {
+            if (tail - head == messages.length) {
+                grow();
+            }
+            int index = (int) (tail & mask);
+            messages[index] = message;
+            keys[index] = key;
+            times[index] = time;
+            tail++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the messages added before the time.
+     */
+    void trim(long minTime) {
+        lock.writeLock().lock();
+        try {
+            while (head < tail && times[(int) (head & mask)] < minTime) {
+                messages[(int) (head & mask)] = null;
+                head++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the messages with the keys greater than fromKey and not greater than toKey and added not before minTime to the result.
+     */
+    @SuppressWarnings("unchecked")
+    void read(long fromKey, long toKey, long minTime, Collection<? super M> result) {
+        lock.readLock().lock();
+        try {
+            long start = Math.max(firstAbove(keys, fromKey), firstAbove(times, minTime - 1));
+            long end = firstAbove(keys, toKey);
+            for (long position = start; position < end; position++) {
+                result.add((M) messages[(int) (position & mask)]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return position of the first value greater than the bound or tail if there's none
+     */
+    private long firstAbove(long[] values, long bound) {
+        long low = head;
+        long high = tail;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (values[(int) (middle & mask)] > bound) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    private void grow() {
+        int capacity = messages.length * 2;
+        Object[] newMessages = new Object[capacity];
+        long[] newKeys = new long[capacity];
+        long[] newTimes = new long[capacity];
+        int newMask = capacity - 1;
+        for (long position = head; position < tail; position++) {
+            int index = (int) (position & mask);
+            int newIndex = (int) (position & newMask);
+            newMessages[newIndex] = messages[index];
+            newKeys[newIndex] = keys[index];
+            newTimes[newIndex] = times[index];
+        }
+        messages = newMessages;
+        keys = newKeys;
+        times = newTimes;
+        mask = newMask;
+    }
+}
@@ -0,0 +1,133 @@
+package ru.ppsrk.gwt.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.hibernate.Session;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+import ru.ppsrk.gwt.client.LogicException;
+
+/**
+ * Sessions of {@link HibernateUtil#execParallel(int[], ExecutorService, HibernateParallelCallback)} with the executor to query them
+ * concurrently. A session isn't thread-safe so it shouldn't be used by the caller while a task submitted for it is running.
+ */
+public class ParallelSessions {
+
+    private final Session[] sessions;
+    private final ExecutorService executor;
+    private final List<Future<?>> submitted = new ArrayList<>();
+
+    ParallelSessions(Session[] sessions, ExecutorService executor) {
+        this.sessions = sessions;
+        this.executor = executor;
+    }
+
+    /**
+     * @return session by its position in the sessionNumbers array, null if there's no such factory
+     */
+    public Session get(int index) {
+        return sessions[index];
+    }
+
+    public int size() {
+        return sessions.length;
+    }
+
+    /**
+     * Runs the callback with the session in the executor.
+     */
+    public <R> Future<R> submit(int index, HibernateCallback<R> callback) {
+        Session session = sessions[index];
+        Future<R> future = executor.submit(() -> callback.run(session));
+        synchronized (submitted) {
+            submitted.add(future);
+        }
+        return future;
+    }
+
+    /**
+     * Runs the callback with every session concurrently and waits for all of them.
+     *
+     * @return results in the order of the sessions
+     */
+    public <R> List<R> invokeAll(HibernateCallback<R> callback) throws GwtUtilException {
+        List<Future<R>> futures = new ArrayList<>(sessions.length);
+        for (int i = 0; i < sessions.length; i++) {
+            futures.add(sessions[i] == null ? null : submit(i, callback));
+        }
+        List<R> results = new ArrayList<>(sessions.length);
+        Exception failure = null;
+        // wait for all the tasks even if one fails so the sessions aren't used concurrently on rollback
+        for (Future<R> future : futures) {
+            try {
+                results.add(future == null ? null : await(future));
+            } catch (GwtUtilException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure instanceof GwtUtilException) {
+            throw (GwtUtilException) failure;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+        return results;
+    }
+
+    /**
+     * Waits for all the submitted tasks ignoring their results, the callback could leave some of them running.
+     */
+    void awaitSubmitted() {
+        List<Future<?>> futures;
+        synchronized (submitted) {
+            futures = new ArrayList<>(submitted);
+            submitted.clear();
+        }
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the task rethrowing its exception.
+     */
+    public static <R> R await(Future<R> future) throws GwtUtilException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LogicException("Interrupted while waiting for the database.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GwtUtilException) {
+                throw (GwtUtilException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new LogicException("Database task failed.", cause);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package ru.ppsrk.gwt.server;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.action.internal.BulkOperationCleanupAction;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.IntegerType;
+import org.hibernate.type.LongType;
+import org.hibernate.type.ShortType;
+import org.hibernate.type.Type;
+
+import ru.ppsrk.gwt.client.HasId;
+import ru.ppsrk.gwt.client.LogicException;
+
+/**
+ * Updates of the non-null entity properties without reading the entity first. The updatable properties of the entity class are
+ * resolved from the Hibernate metadata once, the HQL statement is built once per combination of the non-null properties. A collection
+ * of entities is updated with JDBC batches of the same SQL statement per combination.
+ */
+final class PartialUpdates {
+
+    private static final String ID_PARAM = "id";
+    private static final ConcurrentMap<EntityPersister, EntityUpdate> updates = new ConcurrentHashMap<>();
+
+    private PartialUpdates() {
+    }
+
+    private static class EntityUpdate {
+        private final String entityName;
+        private final String idProperty;
+        private final String[] names;
+        private final Type[] types;
+        // scalar and many-to-one properties, collections and components can't be set with HQL update
+        private final int[] updatable;
+        private final boolean versioned;
+        private final ConcurrentMap<BitSet, String> statements = new ConcurrentHashMap<>();
+        // set if all the updatable properties are in the single table and the version, if any, is a number
+        private final AbstractEntityPersister batchPersister;
+        private final ConcurrentMap<BitSet, String> sqlStatements = new ConcurrentHashMap<>();
+
+        EntityUpdate(EntityPersister persister) {
+            entityName = persister.getEntityName();
+            idProperty = persister.getIdentifierPropertyName();
+            names = persister.getPropertyNames();
+            types = persister.getPropertyTypes();
+            versioned = persister.isVersioned();
+            boolean[] updateability = persister.getPropertyUpdateability();
+            List<Integer> indices = new ArrayList<>();
+            for (int i = 0; i < names.length; i++) {
+                if (updateability[i] && i != persister.getVersionProperty() && !types[i].isCollectionType()
+                        && !types[i].isComponentType()) {
+                    indices.add(i);
+                }
+            }
+            updatable = indices.stream().mapToInt(Integer::intValue).toArray();
+            batchPersister = batchable(persister) ? (AbstractEntityPersister) persister : null;
+        }
+
+        private boolean batchable(EntityPersister persister) {
+            if (!(persister instanceof AbstractEntityPersister)) {
+                return false;
+            }
+            AbstractEntityPersister entityPersister = (AbstractEntityPersister) persister;
+            for (int i : updatable) {
+                if (!entityPersister.getTableName().equals(entityPersister.getPropertyTableName(names[i]))) {
+                    return false;
+                }
+            }
+            Type versionType = persister.getVersionType();
+            return !versioned
+                    || versionType instanceof IntegerType || versionType instanceof LongType || versionType instanceof ShortType;
+        }
+
+        String sqlStatement(BitSet set) {
+            return sqlStatements.computeIfAbsent(set, key -> {
+                List<String> assignments = new ArrayList<>();
+                for (int i = key.nextSetBit(0); i >= 0; i = key.nextSetBit(i + 1)) {
+                    for (String column : batchPersister.getPropertyColumnNames(i)) {
+                        assignments.add(column + " = ?");
+                    }
+                }
+                if (versioned) {
+                    String versionColumn = batchPersister.getVersionColumnName();
+                    assignments.add(versionColumn + " = " + versionColumn + " + 1");
+                }
+                List<String> keys = new ArrayList<>();
+                for (String column : batchPersister.getKeyColumnNames()) {
+                    keys.add(column + " = ?");
+                }
+                return "update " + batchPersister.getTableName() + " set " + String.join(", ", assignments) + " where "
+                        + String.join(" and ", keys);
+            });
+        }
+
+        String statement(BitSet set) {
+            return statements.computeIfAbsent(set, key -> {
+                StringBuilder sb = new StringBuilder("update ").append(versioned ? "versioned " : "").append(entityName).append(" e set ");
+                for (int i = key.nextSetBit(0); i >= 0; i = key.nextSetBit(i + 1)) {
+                    sb.append("e.").append(names[i]).append(" = :p").append(i).append(i == key.length() - 1 ? "" : ", ");
+                }
+                return sb.append(" where e.").append(idProperty).append(" = :").append(ID_PARAM).toString();
+            });
+        }
+    }
+
+    /**
+     * Saves the entity if it's new, otherwise updates its non-null properties.
+     *
+     * @return entity id
+     * @throws LogicException
+     *             if the entity doesn't exist
+     */
+    static Long saveOrUpdate(Session session, HasId entity) throws LogicException {
+        if (entity.getId() == null) {
+            return (Long) session.save(entity);
+        }
+        EntityPersister persister = (EntityPersister) session.getSessionFactory().getClassMetadata(entity.getClass());
+        if (persister == null) {
+            throw new LogicException("Class " + entity.getClass().getName() + " isn't a mapped entity.");
+        }
+        EntityUpdate update = updates.computeIfAbsent(persister, EntityUpdate::new);
+        Object[] values = persister.getPropertyValues(entity);
+        BitSet set = new BitSet(values.length);
+        for (int i : update.updatable) {
+            if (values[i] != null) {
+                set.set(i);
+            }
+        }
+        if (set.isEmpty()) {
+            return entity.getId();
+        }
+        Query query = session.createQuery(update.statement(set)).setLong(ID_PARAM, entity.getId());
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            query.setParameter("p" + i, values[i], update.types[i]);
+        }
+        if (query.executeUpdate() == 0) {
+            throw new LogicException("No entity of class " + entity.getClass().getName() + " and id " + entity.getId());
+        }
+        return entity.getId();
+    }
+
+    /**
+     * Same as {@link #saveOrUpdate(Session, HasId)} for every entity but the updates setting the same properties of the same entity
+     * class are sent in JDBC batches. The session is flushed before the updates and the second level cache regions of the updated
+     * entities are cleaned up like after an HQL update.
+     *
+     * @return entity ids in the order of the entities
+     * @throws LogicException
+     *             if an entity doesn't exist
+     */
+    static List<Long> saveOrUpdate(Session session, Collection<? extends HasId> entities, int batchSize) throws LogicException {
+        List<Long> ids = new ArrayList<>(entities.size());
+        Map<BatchKey, List<Object[]>> batches = new LinkedHashMap<>();
+        for (HasId entity : entities) {
+            EntityPersister persister = entity.getId() == null ? null
+                    : (EntityPersister) session.getSessionFactory().getClassMetadata(entity.getClass());
+            EntityUpdate update = persister == null ? null : updates.computeIfAbsent(persister, EntityUpdate::new);
+            if (update == null || update.batchPersister == null) {
+                ids.add(saveOrUpdate(session, entity));
+                continue;
+            }
+            Object[] values = persister.getPropertyValues(entity);
+            BitSet set = new BitSet(values.length);
+            for (int i : update.updatable) {
+                if (values[i] != null) {
+                    set.set(i);
+                }
+            }
+            if (!set.isEmpty()) {
+                Object[] row = new Object[values.length + 1];
+                System.arraycopy(values, 0, row, 0, values.length);
+                row[values.length] = entity.getId();
+                batches.computeIfAbsent(new BatchKey(update, set), key -> new ArrayList<>()).add(row);
+            }
+            ids.add(entity.getId());
+        }
+        if (!batches.isEmpty()) {
+            executeBatches((SessionImplementor) session, batches, batchSize);
+        }
+        return ids;
+    }
+
+    private static class BatchKey {
+        private final EntityUpdate update;
+        private final BitSet set;
+
+        BatchKey(EntityUpdate update, BitSet set) {
+            this.update = update;
+            this.set = set;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(update, set);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) obj;
+            return update == other.update && set.equals(other.set);
+        }
+    }
+
+    private static void executeBatches(SessionImplementor session, Map<BatchKey, List<Object[]>> batches, int batchSize)
+            throws LogicException {
+        ((Session) session).flush();
+        // entity name and id of the first row not found, set by the work
+        Object[] missing = new Object[2];
+        ((Session) session).doWork(connection -> {
+            for (Map.Entry<BatchKey, List<Object[]>> batch : batches.entrySet()) {
+                EntityUpdate update = batch.getKey().update;
+                BitSet set = batch.getKey().set;
+                try (PreparedStatement statement = connection.prepareStatement(update.sqlStatement(set))) {
+                    List<Object[]> rows = batch.getValue();
+                    for (int start = 0; start < rows.size() && missing[0] == null; start += batchSize) {
+                        List<Object[]> chunk = rows.subList(start, Math.min(start + batchSize, rows.size()));
+                        for (Object[] row : chunk) {
+                            bind(statement, update, set, row, session);
+                            statement.addBatch();
+                        }
+                        int[] counts = statement.executeBatch();
+                        for (int i = 0; i < counts.length; i++) {
+                            if (counts[i] == 0 || counts[i] == Statement.EXECUTE_FAILED) {
+                                missing[0] = update.entityName;
+                                missing[1] = chunk.get(i)[chunk.get(i).length - 1];
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (missing[0] != null) {
+                    return;
+                }
+            }
+        });
+        List<AbstractEntityPersister> persisters = new ArrayList<>();
+        for (BatchKey key : batches.keySet()) {
+            if (!persisters.contains(key.update.batchPersister)) {
+                persisters.add(key.update.batchPersister);
+            }
+        }
+        // evicts the updated entities and the query results from the second level cache as HQL updates do
+        BulkOperationCleanupAction cleanup = new BulkOperationCleanupAction(session,
+                persisters.toArray(new AbstractEntityPersister[persisters.size()]));
+        if (session instanceof EventSource) {
+            ((EventSource) session).getActionQueue().addAction(cleanup);
+        } else {
+            cleanup.getAfterTransactionCompletionProcess().doAfterTransactionCompletion(true, session);
+        }
+        if (missing[0] != null) {
+            throw new LogicException("No entity of class " + missing[0] + " and id " + missing[1]);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, EntityUpdate update, BitSet set, Object[] row, SessionImplementor session)
+            throws SQLException {
+        int index = 1;
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            update.types[i].nullSafeSet(statement, row[i], index, session);
+            index += update.types[i].getColumnSpan(session.getFactory());
+        }
+        update.batchPersister.getIdentifierType().nullSafeSet(statement, row[row.length - 1], index, session);
+    }
+}
@@ -0,0 +1,96 @@
+package ru.ppsrk.gwt.server;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of the connection pool state of a session factory.
+ */
+public class PoolMetrics {
+
+    /**
+     * Upper bounds of the acquire time histogram buckets in microseconds, the last bucket counts the longer waits.
+     */
+    public static final long[] ACQUIRE_BUCKETS_MICROS = { 100, 1000, 10000, 100000, 1000000 };
+
+    private final String poolName;
+    private final int active;
+    private final int idle;
+    private final int total;
+    private final int waiting;
+    private final long acquired;
+    private final long timeouts;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long[] acquireHistogram;
+
+    public PoolMetrics(String poolName, int active, int idle, int total, int waiting, long acquired, long timeouts, long totalWaitNanos,
+            long maxWaitNanos, long[] acquireHistogram) {
+        this.poolName = poolName;
+        this.active = active;
+        this.idle = idle;
+        this.total = total;
+        this.waiting = waiting;
+        this.acquired = acquired;
+        this.timeouts = timeouts;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.acquireHistogram = acquireHistogram;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return number of threads waiting for a connection right now
+     */
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public long getAcquired() {
+        return acquired;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    public long getMeanWaitNanos() {
+        return acquired == 0 ? 0 : totalWaitNanos / acquired;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * @return number of acquisitions in every bucket of {@link #ACQUIRE_BUCKETS_MICROS} plus the overflow bucket
+     */
+    public long[] getAcquireHistogram() {
+        return acquireHistogram;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolMetrics [poolName=" + poolName + ", active=" + active + ", idle=" + idle + ", total=" + total + ", waiting=" + waiting
+                + ", acquired=" + acquired + ", timeouts=" + timeouts + ", meanWaitNanos=" + getMeanWaitNanos() + ", maxWaitNanos="
+                + maxWaitNanos + ", acquireHistogram=" + Arrays.toString(acquireHistogram) + "]";
+    }
+}
@@ -0,0 +1,184 @@
+package ru.ppsrk.gwt.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+
+/**
+ * HikariCP connection provider collecting the connection acquire time statistics. Enable it with
+ *
+ * <pre>
+ * &lt;property name="hibernate.connection.provider_class"&gt;ru.ppsrk.gwt.server.PooledConnectionProvider&lt;/property&gt;
+ * </pre>
+ *
+ * The url, user, password and autocommit settings are taken from the usual hibernate.connection.* properties, the maximum pool size
+ * from hibernate.connection.pool_size. Any HikariCP setting may be given with the hibernate.hikari prefix, e.g.
+ * hibernate.hikari.minimumIdle. The metrics of all the factories are available with {@link HibernateUtil#getPoolMetrics()}.
+ */
+public class PooledConnectionProvider implements ConnectionProvider, Configurable, Stoppable {
+
+    private static final long serialVersionUID = -4413458734021781567L;
+    public static final String HIKARI_PREFIX = "hibernate.hikari.";
+    private static final AtomicLong poolCounter = new AtomicLong();
+
+    private transient HikariDataSource dataSource;
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder[] histogram = new LongAdder[PoolMetrics.ACQUIRE_BUCKETS_MICROS.length + 1];
+
+    public PooledConnectionProvider() {
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Settings enabling the pool for {@link HibernateUtil#initSessionFactory(String, Properties)}.
+     * 
+     * @param maximumPoolSize
+     *            maximum number of connections
+     * @param minimumIdle
+     *            number of idle connections to keep
+     * @return settings overriding the config file
+     */
+    public static Properties settings(int maximumPoolSize, int minimumIdle) {
+        Properties settings = new Properties();
+        settings.setProperty(AvailableSettings.CONNECTION_PROVIDER, PooledConnectionProvider.class.getName());
+        settings.setProperty(HIKARI_PREFIX + "maximumPoolSize", Integer.toString(maximumPoolSize));
+        settings.setProperty(HIKARI_PREFIX + "minimumIdle", Integer.toString(minimumIdle));
+        return settings;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void configure(Map configurationValues) {
+        Properties hikariProperties = new Properties();
+        for (Object entry : configurationValues.entrySet()) {
+            Object key = ((Entry) entry).getKey();
+            Object value = ((Entry) entry).getValue();
+            if (key instanceof String && value != null && ((String) key).startsWith(HIKARI_PREFIX)) {
+                hikariProperties.setProperty(((String) key).substring(HIKARI_PREFIX.length()), value.toString());
+            }
+        }
+        HikariConfig config = new HikariConfig(hikariProperties);
+        Object url = configurationValues.get(AvailableSettings.URL);
+        if (url != null && config.getJdbcUrl() == null && config.getDataSourceClassName() == null) {
+            config.setJdbcUrl(url.toString());
+        }
+        Object driver = configurationValues.get(AvailableSettings.DRIVER);
+        if (driver != null && config.getDriverClassName() == null && config.getDataSourceClassName() == null) {
+            config.setDriverClassName(driver.toString());
+        }
+        Object user = configurationValues.get(AvailableSettings.USER);
+        if (user != null && config.getUsername() == null) {
+            config.setUsername(user.toString());
+        }
+        Object password = configurationValues.get(AvailableSettings.PASS);
+        if (password != null && config.getPassword() == null) {
+            config.setPassword(password.toString());
+        }
+        Object autocommit = configurationValues.get(AvailableSettings.AUTOCOMMIT);
+        if (autocommit != null && !hikariProperties.containsKey("autoCommit")) {
+            config.setAutoCommit(Boolean.parseBoolean(autocommit.toString()));
+        }
+        Object poolSize = configurationValues.get(AvailableSettings.POOL_SIZE);
+        if (poolSize != null && !hikariProperties.containsKey("maximumPoolSize")) {
+            config.setMaximumPoolSize(Integer.parseInt(poolSize.toString().trim()));
+        }
+        if (config.getPoolName() == null) {
+            config.setPoolName("gwtutil-" + poolCounter.incrementAndGet());
+        }
+        config.setMetricsTrackerFactory((poolName, poolStats) -> new AcquireTracker());
+        dataSource = new HikariDataSource(config);
+    }
+
+    private class AcquireTracker implements IMetricsTracker {
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquired.increment();
+            totalWaitNanos.add(elapsedAcquiredNanos);
+            maxWaitNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+            long micros = TimeUnit.NANOSECONDS.toMicros(elapsedAcquiredNanos);
+            int bucket = 0;
+            while (bucket < PoolMetrics.ACQUIRE_BUCKETS_MICROS.length && micros >= PoolMetrics.ACQUIRE_BUCKETS_MICROS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket].increment();
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.increment();
+        }
+    }
+
+    public PoolMetrics getMetrics() {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        long[] buckets = new long[histogram.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = histogram[i].sum();
+        }
+        return new PoolMetrics(dataSource.getPoolName(), pool.getActiveConnections(), pool.getIdleConnections(),
+                pool.getTotalConnections(), pool.getThreadsAwaitingConnection(), acquired.sum(), timeouts.sum(), totalWaitNanos.sum(),
+                maxWaitNanos.get(), buckets);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public void closeConnection(Connection conn) throws SQLException {
+        conn.close();
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public boolean isUnwrappableAs(Class unwrapType) {
+        return unwrapType.isAssignableFrom(getClass()) || unwrapType.isAssignableFrom(HikariDataSource.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T unwrap(Class<T> unwrapType) {
+        if (unwrapType.isAssignableFrom(getClass())) {
+            return (T) this;
+        }
+        if (unwrapType.isAssignableFrom(HikariDataSource.class)) {
+            return (T) dataSource;
+        }
+        throw new UnknownUnwrapTypeException(unwrapType);
+    }
+
+    @Override
+    public void stop() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+}
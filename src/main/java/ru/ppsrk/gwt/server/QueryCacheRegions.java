@@ -0,0 +1,155 @@
+package ru.ppsrk.gwt.server;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cache.ehcache.SingletonEhCacheRegionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+
+/**
+ * Query cache regions of the {@link HibernateUtil#queryList} results. The cache is in-process Ehcache shared by all the session
+ * factories, enable it with {@link #settings()}. Every region has its own size and time to live and may depend on the entity classes,
+ * the region is cleared when HibernateUtil saves or deletes such an entity. Hibernate itself never returns the results older than the
+ * last update of the queried tables, the eviction frees the memory taken by those stale results earlier.
+ */
+public final class QueryCacheRegions {
+
+    public static class RegionStatistics {
+        private final long hits;
+        private final long misses;
+        private final long puts;
+        private final long size;
+
+        public RegionStatistics(long hits, long misses, long puts, long size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.puts = puts;
+            this.size = size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getPuts() {
+            return puts;
+        }
+
+        /**
+         * @return number of the cached entries
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, puts=%d, size=%d, hitRatio=%.3f", hits, misses, puts, size, getHitRatio());
+        }
+    }
+
+    private static final ConcurrentMap<Class<?>, Set<String>> entityRegions = new ConcurrentHashMap<>();
+
+    private QueryCacheRegions() {
+    }
+
+    /**
+     * Settings enabling the query cache for {@link HibernateUtil#initSessionFactory(String, Properties)}.
+     */
+    public static Properties settings() {
+        Properties settings = new Properties();
+        settings.setProperty(AvailableSettings.USE_SECOND_LEVEL_CACHE, "true");
+        settings.setProperty(AvailableSettings.USE_QUERY_CACHE, "true");
+        settings.setProperty(AvailableSettings.CACHE_REGION_FACTORY, SingletonEhCacheRegionFactory.class.getName());
+        settings.setProperty(AvailableSettings.GENERATE_STATISTICS, "true");
+        return settings;
+    }
+
+    /**
+     * Configures the cache region, should be called before the first query using it. Queries are put to the region with
+     * {@link HibernateUtil.ListQueryFilter#setCacheRegion(String)}.
+     *
+     * @param region
+     *            region name
+     * @param maxEntries
+     *            maximum number of the cached query results, the least recently used are evicted
+     * @param ttlSeconds
+     *            time to live of the cached results, 0 for unlimited
+     * @param entities
+     *            entity classes the queries of the region depend on
+     */
+    public static void configureRegion(String region, int maxEntries, long ttlSeconds, Class<?>... entities) {
+        CacheManager cacheManager = CacheManager.create();
+        synchronized (cacheManager) {
+            if (cacheManager.cacheExists(region)) {
+                // the cache may be already used by Hibernate, reconfigure it in place
+                CacheConfiguration configuration = cacheManager.getCache(region).getCacheConfiguration();
+                configuration.setMaxElementsInMemory(maxEntries);
+                configuration.setTimeToLiveSeconds(ttlSeconds);
+            } else {
+                cacheManager.addCache(new Cache(new CacheConfiguration(region, maxEntries).timeToLiveSeconds(ttlSeconds)));
+            }
+        }
+        for (Class<?> entity : entities) {
+            entityRegions.computeIfAbsent(entity, key -> ConcurrentHashMap.newKeySet()).add(region);
+        }
+    }
+
+    /**
+     * Clears the regions depending on the entity class or its superclasses in all the session factories.
+     */
+    public static void evict(Class<?> entityClass) {
+        if (entityRegions.isEmpty()) {
+            return;
+        }
+        for (Class<?> clazz = entityClass; clazz != null; clazz = clazz.getSuperclass()) {
+            Set<String> regions = entityRegions.get(clazz);
+            if (regions != null) {
+                for (SessionFactory factory : HibernateUtil.getSessionFactories()) {
+                    for (String region : regions) {
+                        factory.getCache().evictQueryRegion(region);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return statistics of all the cache regions of the session factory by the region name, empty if the statistics are disabled
+     */
+    public static Map<String, RegionStatistics> getStatistics(int sessionNumber) {
+        Map<String, RegionStatistics> result = new TreeMap<>();
+        SessionFactory factory = HibernateUtil.getSessionFactory(sessionNumber);
+        if (factory == null || !factory.getStatistics().isStatisticsEnabled()) {
+            return result;
+        }
+        Statistics statistics = factory.getStatistics();
+        for (String region : statistics.getSecondLevelCacheRegionNames()) {
+            SecondLevelCacheStatistics regionStatistics = statistics.getSecondLevelCacheStatistics(region);
+            if (regionStatistics != null) {
+                result.put(region, new RegionStatistics(regionStatistics.getHitCount(), regionStatistics.getMissCount(),
+                        regionStatistics.getPutCount(), regionStatistics.getElementCountInMemory()));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+package ru.ppsrk.gwt.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ru.ppsrk.gwt.server.HibernateUtil.ReplicaSelection;
+
+/**
+ * Read replicas of a session factory. Counts the sessions opened on every replica to pick the least loaded one.
+ */
+final class ReplicaSet {
+
+    private final int[] replicas;
+    private final ReplicaSelection selection;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicIntegerArray inFlight;
+
+    ReplicaSet(int[] replicas, ReplicaSelection selection) {
+        this.replicas = replicas.clone();
+        this.selection = selection;
+        inFlight = new AtomicIntegerArray(replicas.length);
+    }
+
+    /**
+     * Picks a replica, {@link #release(int)} should be called when its session is closed.
+     *
+     * @return session number of the replica
+     */
+    int acquire() {
+        int slot;
+        if (selection == ReplicaSelection.LEAST_LOADED) {
+            // start from the next replica so the equally loaded ones are used in turn
+            int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+            slot = start;
+            for (int i = 1; i < replicas.length; i++) {
+                int candidate = (start + i) % replicas.length;
+                if (inFlight.get(candidate) < inFlight.get(slot)) {
+                    slot = candidate;
+                }
+            }
+        } else {
+            slot = Math.floorMod(next.getAndIncrement(), replicas.length);
+        }
+        inFlight.incrementAndGet(slot);
+        return replicas[slot];
+    }
+
+    void release(int sessionNumber) {
+        for (int slot = 0; slot < replicas.length; slot++) {
+            if (replicas[slot] == sessionNumber) {
+                inFlight.decrementAndGet(slot);
+                return;
+            }
+        }
+    }
+}
@@ -9,4 +9,9 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface RequiresSession {
     public int sessionNumber() default 0;
+
+    /**
+     * Open a read-only session on a replica of the session factory, see {@link HibernateUtil#execReadOnly(int, HibernateCallback)}.
+     */
+    public boolean readOnly() default false;
 }
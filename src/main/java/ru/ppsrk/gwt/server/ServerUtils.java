@@ -7,9 +7,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
 
 import javax.validation.MessageInterpolator;
@@ -37,14 +40,46 @@ public class ServerUtils {
 
     private static Validator validator = null;
     private static DozerBeanMapper mapper = new DozerBeanMapper();
+    private static CompiledMapper compiledMapper = new CompiledMapper(mapper);
     private static TelemetryServiceImpl telemetryService = new TelemetryServiceImpl();
 
     public interface MapperHint {
         public Class<?>[][] getMapperHints();
     }
 
+    /**
+     * Hint class to the table of the mapping classes in both directions, resolved once per hint class.
+     */
+    private static final ClassValue<Map<Class<?>, Class<?>>> mapperHints = new ClassValue<Map<Class<?>, Class<?>>>() {
+
+        @Override
+        protected Map<Class<?>, Class<?>> computeValue(Class<?> hintClass) {
+            Class<?>[][] mapping;
+            try {
+                mapping = ((MapperHint) hintClass.newInstance()).getMapperHints();
+            } catch (InstantiationException | IllegalAccessException e) {
+                log.error("{}", e);
+                return Collections.emptyMap();
+            }
+            if (mapping.length != 2) {
+                throw new AlertRuntimeException("Invalid MapperHint class size, expected 2, got: " + mapping.length);
+            }
+            if (mapping[0].length != mapping[1].length) {
+                throw new AlertRuntimeException("Non-equal MapperHint class sizes: " + mapping[0].length + " / " + mapping[1].length);
+            }
+            Map<Class<?>, Class<?>> hints = new HashMap<>();
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < mapping[i].length; j++) {
+                    hints.putIfAbsent(mapping[i][j], mapping[1 - i][j]);
+                }
+            }
+            return hints;
+        }
+    };
+
     protected static void cleanup() {
         log.info("Cleaning up ServerUtils...");
+        compiledMapper.clear();
         mapper.destroy();
         mapper = null;
     }
@@ -96,10 +131,11 @@ public class ServerUtils {
     }
 
     public static <S, D, H extends MapperHint> List<D> mapArray(Collection<S> list, Class<D> destClass, Class<H> hintClass) {
-        List<D> result = new ArrayList<>();
+        Map<Class<?>, Class<?>> hints = mapperHints.get(hintClass);
+        List<D> result = new ArrayList<>(list.size());
         for (S elem : list) {
             if (elem != null) {
-                result.add(mapModel(elem, destClass, hintClass));
+                result.add(mapModel(elem, hints));
             }
         }
         return result;
@@ -113,7 +149,7 @@ public class ServerUtils {
                 log.error("{}", e);
             }
         }
-        return mapper.map(value, classDTO);
+        return compiledMapper.map(value, classDTO);
     }
 
     @SuppressWarnings("unchecked")
@@ -121,27 +157,17 @@ public class ServerUtils {
         return (T) mapModel(value, value.getClass());
     }
 
-    @SuppressWarnings("unchecked")
     public static <T, H extends MapperHint> T mapModel(Object value, Class<T> classDTO, Class<H> hintClass) {
-        try {
-            Class<?>[][] mapping = hintClass.newInstance().getMapperHints();
-            if (mapping.length != 2) {
-                throw new AlertRuntimeException("Invalid MapperHint class size, expected 2, got: " + mapping.length);
-            }
-            if (mapping[0].length != mapping[1].length) {
-                throw new AlertRuntimeException("Non-equal MapperHint class sizes: " + mapping[0].length + " / " + mapping[1].length);
-            }
-            for (int i = 0; i < 2; i++) {
-                for (int j = 0; j < mapping[i].length; j++) {
-                    if (mapping[i][j].equals(value.getClass())) {
-                        return (T) mapper.map(value, mapping[1 - i][j]);
-                    }
-                }
-            }
-        } catch (InstantiationException | IllegalAccessException e) {
-            log.error("{}", e);
+        return mapModel(value, mapperHints.get(hintClass));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T mapModel(Object value, Map<Class<?>, Class<?>> hints) {
+        Class<?> destClass = hints.get(value.getClass());
+        if (destClass == null) {
+            throw new AlertRuntimeException("Couldn't find the valid mapping class for " + value.toString());
         }
-        throw new AlertRuntimeException("Couldn't find the valid mapping class for " + value.toString());
+        return (T) compiledMapper.map(value, destClass);
     }
 
     public static void printStackTrace() {
@@ -203,7 +229,17 @@ public class ServerUtils {
     }
 
     public static void setMappingFiles(List<String> files) {
-        mapper.setMappingFiles(files);
+        compiledMapper.setMappingFiles(files);
+    }
+
+    /**
+     * Switches between the compiled mapping (default) and the plain Dozer mapping, see {@link CompiledMapper}.
+     * 
+     * @param enabled
+     *            use the compiled mapping where possible
+     */
+    public static void setCompiledMapping(boolean enabled) {
+        compiledMapper.setEnabled(enabled);
     }
 
     public static void setMappingFile(String filename) {
@@ -14,17 +14,33 @@ import ru.ppsrk.gwt.server.AnnotatedServlet.IRPCFinalizer;
 public class SessionProcessor implements IAnnotationProcessor, IRPCFinalizer {
 
     private ThreadLocal<Session> sessionTL = new ThreadLocal<>();
+    // replica set and the session number of the replica used by the read-only session
+    private ThreadLocal<ReplicaSet> replicaSetTL = new ThreadLocal<>();
+    private ThreadLocal<Integer> replicaTL = new ThreadLocal<>();
     private ThreadLocal<LinkedList<Runnable>> oneTimers = ThreadLocal.withInitial(LinkedList::new);
 
     @Override
     public void process(Method implMethod, RPCRequest rpcRequest) throws Exception {
         if (implMethod.isAnnotationPresent(RequiresSession.class)) {
-            int sessionNumber = implMethod.getAnnotation(RequiresSession.class).sessionNumber();
+            RequiresSession requiresSession = implMethod.getAnnotation(RequiresSession.class);
+            int sessionNumber = requiresSession.sessionNumber();
+            boolean readOnly = requiresSession.readOnly();
+            if (readOnly) {
+                ReplicaSet replicaSet = HibernateUtil.getReplicas(sessionNumber);
+                if (replicaSet != null) {
+                    sessionNumber = replicaSet.acquire();
+                    replicaSetTL.set(replicaSet);
+                    replicaTL.set(sessionNumber);
+                }
+            }
             SessionFactory sessionFactory = HibernateUtil.getSessionFactory(sessionNumber);
             if (sessionFactory != null) {
-                Session session = sessionFactory.openSession();
-                session.beginTransaction();
-                setSession(session);
+                try {
+                    setSession(HibernateUtil.openSession(sessionFactory, readOnly));
+                } catch (RuntimeException e) {
+                    releaseReplica();
+                    throw e;
+                }
             }
         }
     }
@@ -39,6 +55,7 @@ public class SessionProcessor implements IAnnotationProcessor, IRPCFinalizer {
 
     @Override
     public void cleanup(boolean failure) {
+        releaseReplica();
         Session session = getSession();
         if (session != null) {
             try {
@@ -61,6 +78,15 @@ public class SessionProcessor implements IAnnotationProcessor, IRPCFinalizer {
         }
     }
 
+    private void releaseReplica() {
+        ReplicaSet replicaSet = replicaSetTL.get();
+        if (replicaSet != null) {
+            replicaSet.release(replicaTL.get());
+            replicaSetTL.remove();
+            replicaTL.remove();
+        }
+    }
+
     public void registerTo(AnnotatedServlet annotatedServlet) {
         annotatedServlet.addProcessor(this);
         annotatedServlet.addFinalizer(this);
@@ -0,0 +1,71 @@
+package ru.ppsrk.gwt.server.hierarchy;
+
+import java.util.List;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+import ru.ppsrk.gwt.client.SettableParent;
+
+/**
+ * Common operations of the tree storage backends. The nested set ({@link ru.ppsrk.gwt.server.nestedset.NestedSetManagerNG}) is fast to
+ * read but every write renumbers a part of the table, the materialized path ({@link MaterializedPathManager}) writes only the affected
+ * rows, so pick the backend per entity depending on its read/write mix.
+ *
+ * @param <T>
+ *            tree node entity
+ */
+public interface HierarchyManager<T extends SettableParent> {
+
+    /**
+     * @return the root node or null if the tree is empty
+     * @throws GwtUtilException
+     */
+    public T getRootNode() throws GwtUtilException;
+
+    /**
+     * Retrieves children by parent node id.
+     * 
+     * @param parentId
+     *            use null for the root node
+     * @param orderField
+     *            field name by which the results are sorted
+     * @param directOnly
+     *            retrieve only direct descendants
+     * @return list of children nodes
+     * @throws GwtUtilException
+     */
+    public List<T> getChildren(Long parentId, String orderField, boolean directOnly) throws GwtUtilException;
+
+    public Long getChildrenCount(Long parentId, boolean directOnly) throws GwtUtilException;
+
+    /**
+     * @return direct parent of the node or null for the root node
+     * @throws GwtUtilException
+     */
+    public T getParent(Long childId) throws GwtUtilException;
+
+    /**
+     * Retrieves the path from the root node down to the node itself with the parent links set.
+     * 
+     * @param childId
+     *            node id
+     * @return path nodes ordered by depth, the last one is the node itself
+     * @throws GwtUtilException
+     */
+    public List<T> getAncestors(Long childId) throws GwtUtilException;
+
+    /**
+     * Inserts the node as the last child of the parent.
+     * 
+     * @param node
+     *            new node
+     * @param parentId
+     *            use null for the root node
+     * @return inserted node
+     * @throws GwtUtilException
+     */
+    public T insert(T node, Long parentId) throws GwtUtilException;
+
+    public void delete(Long nodeId, boolean withChildren) throws GwtUtilException;
+
+    public void move(Long nodeId, Long newParentId) throws GwtUtilException;
+}
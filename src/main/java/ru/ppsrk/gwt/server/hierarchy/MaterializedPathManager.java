@@ -0,0 +1,182 @@
+package ru.ppsrk.gwt.server.hierarchy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Criteria;
+import org.hibernate.NonUniqueResultException;
+import org.hibernate.Session;
+import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+import ru.ppsrk.gwt.client.LogicException;
+import ru.ppsrk.gwt.domain.MaterializedPathNode;
+
+/**
+ * Materialized path tree backend. Inserts write a single row and never touch the other nodes, deletes and moves touch only the affected
+ * subtree, so it suits the write-heavy trees better than the nested set. Subtree queries use the path prefix index.
+ *
+ * @param <T>
+ *            tree node entity
+ */
+public class MaterializedPathManager<T extends MaterializedPathNode> implements HierarchyManager<T> {
+
+    public static final String SEPARATOR = ":";
+    private static final String PATH = "path";
+    private static final String PREFIX = "prefix";
+    private static final String DEPTH = "depth";
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private Class<T> entityClass;
+    private String entityName;
+    private Session session;
+
+    public MaterializedPathManager(Class<T> entityClass, Session session) {
+        this.session = session;
+        this.entityClass = entityClass;
+        entityName = entityClass.getSimpleName();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T getRootNode() throws GwtUtilException {
+        try {
+            return (T) session.createCriteria(entityClass).add(Restrictions.eq(DEPTH, 0L)).uniqueResult();
+        } catch (NonUniqueResultException e) {
+            throw new LogicException("Duplicate root entries, DB is corrupted.");
+        }
+    }
+
+    public T insertRootNode(final T node) {
+        node.setDepth(0L);
+        session.save(node);
+        node.setPath(node.getId().toString());
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getNodeById(final Long id) throws GwtUtilException {
+        T entity = (T) session.get(entityClass, id);
+        if (entity == null) {
+            throw new LogicException("No entity of class " + entityClass + " and id " + id);
+        }
+        return entity;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> getChildren(final Long parentId, final String orderField, final boolean directOnly) throws GwtUtilException {
+        T parentNode = getNodeById(ensureParentId(parentId));
+        Criteria criteria = descendants(parentNode);
+        if (directOnly) {
+            criteria.add(Restrictions.eq(DEPTH, parentNode.getDepth() + 1));
+        }
+        return criteria.addOrder(Order.asc(orderField)).list();
+    }
+
+    @Override
+    public Long getChildrenCount(final Long parentId, final boolean directOnly) throws GwtUtilException {
+        T parentNode = getNodeById(ensureParentId(parentId));
+        Criteria criteria = descendants(parentNode);
+        if (directOnly) {
+            criteria.add(Restrictions.eq(DEPTH, parentNode.getDepth() + 1));
+        }
+        return (Long) criteria.setProjection(Projections.rowCount()).uniqueResult();
+    }
+
+    @Override
+    public T getParent(final Long childId) throws GwtUtilException {
+        T childNode = getNodeById(childId);
+        String path = childNode.getPath();
+        int end = path.lastIndexOf(SEPARATOR);
+        if (end < 0) {
+            return null;
+        }
+        int start = path.lastIndexOf(SEPARATOR, end - 1) + 1;
+        return getNodeById(Long.valueOf(path.substring(start, end)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> getAncestors(final Long childId) throws GwtUtilException {
+        T childNode = getNodeById(childId);
+        List<Long> ids = new ArrayList<>();
+        for (String id : childNode.getPath().split(SEPARATOR)) {
+            ids.add(Long.valueOf(id));
+        }
+        List<T> path = session.createCriteria(entityClass).add(Restrictions.in("id", ids)).addOrder(Order.asc(DEPTH)).list();
+        T parent = null;
+        for (T node : path) {
+            node.setParent(parent);
+            parent = node;
+        }
+        return path;
+    }
+
+    /**
+     * Inserts the node as a child of the parent. The node is saved and its path is set from the generated id.
+     */
+    @Override
+    public T insert(final T node, final Long parentId) throws GwtUtilException {
+        T parentNode = getNodeById(ensureParentId(parentId));
+        log.debug("Insert; parent node: {} new node: {}", parentNode, node);
+        node.setDepth(parentNode.getDepth() + 1);
+        session.save(node);
+        node.setPath(parentNode.getPath() + SEPARATOR + node.getId());
+        return node;
+    }
+
+    @Override
+    public void delete(final Long nodeId, final boolean withChildren) throws GwtUtilException {
+        T node = getNodeById(nodeId);
+        if (!withChildren && getChildrenCount(nodeId, true) > 0) {
+            throw new LogicException("Need to delete more than one node but children deleting was explicitly prohibited.");
+        }
+        session.createQuery("delete from " + entityName + " node where node.path = :path or node.path like :prefix")
+                .setString(PATH, node.getPath()).setString(PREFIX, node.getPath() + SEPARATOR + "%").executeUpdate();
+    }
+
+    /**
+     * Moves the node with its descendants under the new parent rewriting only their paths and depths with one statement. Entities of
+     * the subtree loaded to the session before the move are stale after it.
+     */
+    @Override
+    public void move(final Long nodeId, final Long newParentId) throws GwtUtilException {
+        T node = getNodeById(nodeId);
+        T parentNode = getNodeById(newParentId);
+        String oldPath = node.getPath();
+        if (parentNode.getPath().equals(oldPath) || parentNode.getPath().startsWith(oldPath + SEPARATOR)) {
+            throw new LogicException("Can't move node to its own child or itself.");
+        }
+        session.flush();
+        session.createQuery("update " + entityName
+                + " node set node.path = concat(:newPath, substring(node.path, :start, length(node.path))), "
+                + "node.depth = node.depth + :depth where node.path = :path or node.path like :prefix")
+                .setString("newPath", parentNode.getPath() + SEPARATOR + nodeId)
+                .setInteger("start", oldPath.length() + 1).setLong(DEPTH, parentNode.getDepth() + 1 - node.getDepth())
+                .setString(PATH, oldPath).setString(PREFIX, oldPath + SEPARATOR + "%").executeUpdate();
+    }
+
+    private Criteria descendants(T parentNode) {
+        return session.createCriteria(entityClass).add(Restrictions.like(PATH, parentNode.getPath() + SEPARATOR, MatchMode.START));
+    }
+
+    private Long ensureParentId(Long parentId) throws GwtUtilException {
+        if (parentId == null) {
+            T rootNode = getRootNode();
+            if (rootNode == null) {
+                try {
+                    rootNode = insertRootNode(entityClass.newInstance());
+                } catch (InstantiationException | IllegalAccessException e) {
+                    throw new LogicException("Can't instantiate new entity.");
+                }
+            }
+            parentId = rootNode.getId();
+        }
+        return parentId;
+    }
+}
@@ -1,18 +1,111 @@
 package ru.ppsrk.gwt.server.nestedset;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.hibernate.Session;
 
 import ru.ppsrk.gwt.client.SettableParent;
 import ru.ppsrk.gwt.domain.NestedSetNodeNG;
 
+/**
+ * Creates the nested set managers. The managers of the same tree share a lock so the writes to it are serialized within the JVM, the
+ * writes to different trees (entity classes) run in parallel. Note that the managers used to lock the factory itself,
+ * synchronized (nsmFactory) doesn't exclude them anymore; synchronize on {@link #getLock(Class)} of the tree instead.
+ */
 public class NSMFactory {
-    
+
+    private final ConcurrentMap<Class<?>, Object> locks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, Long> numberingGaps = new ConcurrentHashMap<>();
+    private NestedSetSnapshotCache snapshotCache;
+    private boolean optimisticVersioning = false;
+
+    /**
+     * Enables the tree snapshot cache for all {@link NestedSetManagerNG} instances created after this call.
+     * 
+     * @param snapshotCache
+     *            cache to use, null to disable
+     */
+    public void setSnapshotCache(NestedSetSnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    public NestedSetSnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * Enables the optimistic versioning for the managers created after this call. The JVM lock doesn't protect the tree from the writes
+     * made by other application nodes sharing the database, with versioning every write transaction checks and increments the tree
+     * counter in {@link ru.ppsrk.gwt.domain.TreeVersion} (map this entity) and fails with
+     * {@link ru.ppsrk.gwt.client.NestedSetManagerException} if another node has changed the tree since the version passed to
+     * {@link NestedSetManagerNG#setTreeVersion(Long)} was read with {@link NestedSetManagerNG#readTreeVersion()}. Roll back and retry
+     * such transactions.
+     * 
+     * @param optimisticVersioning
+     *            check and increment the tree version on every write
+     */
+    public void setOptimisticVersioning(boolean optimisticVersioning) {
+        this.optimisticVersioning = optimisticVersioning;
+    }
+
+    public boolean isOptimisticVersioning() {
+        return optimisticVersioning;
+    }
+
+    /**
+     * Enables the sparse numbering mode for all managers of the tree created after this call, see
+     * {@link NestedSetManagerNG#setNumberingGap(long)}. A tree must never be modified by sparse and dense managers: the dense ones compute
+     * the children counts and {@link NestedSetNodeNG#isLeaf()} from the interval width and shift the numbers inside the gaps, which breaks
+     * the sparse tree. Set the gap here once at startup instead of on the managers so all of them agree.
+     * 
+     * @param entityClass
+     *            nested set entity class
+     * @param numberingGap
+     *            maximum interval width of a new node, at least 2; use 0 for the default dense numbering
+     * @throws IllegalArgumentException
+     *             if the gap is negative or 1
+     */
+    public void setNumberingGap(Class<?> entityClass, long numberingGap) {
+        NestedSetSupport.checkNumberingGap(numberingGap);
+        numberingGaps.put(entityClass, numberingGap);
+    }
+
+    public long getNumberingGap(Class<?> entityClass) {
+        Long numberingGap = numberingGaps.get(entityClass);
+        return numberingGap == null ? 0 : numberingGap;
+    }
+
+    /**
+     * Returns the lock guarding the writes to the tree. Synchronize on it when modifying the tree bypassing the managers.
+     * 
+     * @param entityClass
+     *            nested set entity class
+     * @return lock shared by all managers of the tree
+     */
+    public Object getLock(Class<?> entityClass) {
+        return locks.computeIfAbsent(entityClass, k -> new Object());
+    }
+
     public <T extends NestedSetNode, D extends SettableParent> NestedSetManagerTS<T, D> createNSM(Class<T> entityClass,
             Class<D> dtoClass, Session session) {
-        return new NestedSetManagerTS<>(entityClass, dtoClass, session, this);
+        NestedSetManagerTS<T, D> nsm = new NestedSetManagerTS<>(entityClass, dtoClass, session, getLock(entityClass));
+        nsm.setNumberingGap(getNumberingGap(entityClass));
+        nsm.setOptimisticVersioning(optimisticVersioning);
+        return nsm;
     }
     
     public <T extends NestedSetNodeNG> NestedSetManagerNG<T> createNSM(Class<T> entityClass, Session session) {
-        return new NestedSetManagerNG<>(entityClass, session, this);
+        NestedSetManagerNG<T> nsm = new NestedSetManagerNG<>(entityClass, session, getLock(entityClass));
+        nsm.setNumberingGap(getNumberingGap(entityClass));
+        nsm.setSnapshotCache(snapshotCache);
+        nsm.setOptimisticVersioning(optimisticVersioning);
+        return nsm;
+    }
+
+    public NestedSetVerifier createVerifier(Class<?> entityClass, Session session) {
+        NestedSetVerifier verifier = new NestedSetVerifier(entityClass, session, getLock(entityClass));
+        verifier.setSnapshotCache(snapshotCache);
+        return verifier;
     }
-}
\ No newline at end of file
+}
@@ -2,8 +2,15 @@ package ru.ppsrk.gwt.server.nestedset;
 
 import static ru.ppsrk.gwt.server.ServerUtils.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.hibernate.NonUniqueResultException;
 import org.hibernate.Session;
@@ -19,8 +26,9 @@ import ru.ppsrk.gwt.client.LogicException;
 import ru.ppsrk.gwt.client.NestedSetManagerException;
 import ru.ppsrk.gwt.domain.NestedSetNodeNG;
 import ru.ppsrk.gwt.server.ServerUtils;
+import ru.ppsrk.gwt.server.hierarchy.HierarchyManager;
 
-public class NestedSetManagerNG<T extends NestedSetNodeNG> {
+public class NestedSetManagerNG<T extends NestedSetNodeNG> implements HierarchyManager<T> {
 
     private static final String LEFT = "left";
     private static final String RIGHTNUM = "rightnum";
@@ -29,11 +37,19 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
     private static final String DEPTH = "depth";
     private static final String SHIFT = "shift";
     private static final String UPDATE = "update ";
+    private static final int BULK_BATCH_SIZE = 50;
+    // maximum number of the ids loaded with one in() restriction, larger sets are loaded with the interval query
+    private static final int MAX_IN_IDS = 1000;
     private Logger log = LoggerFactory.getLogger(this.getClass());
     private Class<T> entityClass;
     private String entityName;
     private final Object lock;
     private Session session;
+    private final NestedSetSupport support;
+    private long numberingGap = 0;
+    private NestedSetSnapshotCache snapshotCache;
+    private boolean optimisticVersioning = false;
+    private Long treeVersion;
 
     public enum AnnotateChildren {
         NONE, DIRECT, RECURSIVE, BOTH
@@ -44,6 +60,7 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
         this.session = session;
         this.entityClass = entityClass;
         entityName = entityClass.getSimpleName();
+        support = new NestedSetSupport(entityClass, session);
     }
 
     private void getByParentIdAndInsert(List<? extends T> entities, Long rootId, Long parentNodeId) throws GwtUtilException {
@@ -84,31 +101,38 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
     @SuppressWarnings("unchecked")
     public List<T> getChildrenByParentId(final Long parentId, final String orderField, final boolean directOnly,
             final AnnotateChildren annotateChildren) throws GwtUtilException {
+        if (snapshotCache != null && directOnly) {
+            // all the descendants are found faster by the interval query than by a long list of ids
+            NestedSetSnapshot snapshot = getSnapshot();
+            Long sureParentId = parentId != null ? parentId : snapshot.getRootId();
+            if (sureParentId != null) {
+                if (!snapshot.contains(sureParentId)) {
+                    throw new NestedSetManagerException("Node with id=" + sureParentId + " not found.");
+                }
+                long[] ids = snapshot.getChildIds(sureParentId, true);
+                if (ids.length <= MAX_IN_IDS) {
+                    List<T> entities = getNodesByIds(ids, orderField);
+                    annotateChildrenCount(entities, annotateChildren);
+                    return entities;
+                }
+            }
+        }
         T parentNode = (T) session.get(entityClass, ensureParentId(parentId));
         if (directOnly) {
             session.enableFilter("depthFilter").setParameter(DEPTH, parentNode.getDepth() + 1);
         }
         List<T> entities = session.createCriteria(entityClass).add(Restrictions.gt(LEFTNUM, parentNode.getLeftNum()))
                 .add(Restrictions.lt(RIGHTNUM, parentNode.getRightNum())).addOrder(Order.asc(orderField)).list();
-        switch (annotateChildren) {
-        case DIRECT:
-            annotateChildrenCount(entities, true);
-            break;
-        case RECURSIVE:
-            annotateChildrenCount(entities, false);
-            break;
-        case BOTH:
-            annotateChildrenCount(entities, true);
-            annotateChildrenCount(entities, false);
-            break;
-        default:
-            break;
-        }
+        annotateChildrenCount(entities, annotateChildren);
         return entities;
     }
 
     @SuppressWarnings("unchecked")
+    @Override
     public Long getChildrenCount(final Long parentNodeId, final boolean directOnly) {
+        if (snapshotCache != null) {
+            return getSnapshot().getChildrenCount(parentNodeId, directOnly);
+        }
         T parentNode = (T) session.get(entityClass, parentNodeId);
         if (directOnly) {
             session.enableFilter("depthFilter").setParameter(DEPTH, parentNode.getDepth() + 1);
@@ -118,12 +142,54 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
     }
 
     public void annotateChildrenCount(List<T> entities, boolean directOnly) {
+        annotateChildrenCount(entities, directOnly ? AnnotateChildren.DIRECT : AnnotateChildren.RECURSIVE);
+    }
+
+    /**
+     * Sets the children counts for all entities using at most one query. The recursive count is calculated from the node numbers unless
+     * the sparse numbering is enabled, the direct count is retrieved with a single grouped self-join.
+     * 
+     * @param entities
+     *            entities to annotate
+     * @param annotateChildren
+     *            which counts to set
+     */
+    public void annotateChildrenCount(List<T> entities, AnnotateChildren annotateChildren) {
+        boolean direct = annotateChildren == AnnotateChildren.DIRECT || annotateChildren == AnnotateChildren.BOTH;
+        boolean recursive = annotateChildren == AnnotateChildren.RECURSIVE || annotateChildren == AnnotateChildren.BOTH;
+        if (snapshotCache != null && (direct || recursive)) {
+            NestedSetSnapshot snapshot = getSnapshot();
+            for (T entity : entities) {
+                if (direct) {
+                    entity.setDirectChildrenCount(snapshot.getChildrenCount(entity.getId(), true));
+                }
+                if (recursive) {
+                    entity.setChildrenCount(snapshot.getChildrenCount(entity.getId(), false));
+                }
+            }
+            return;
+        }
+        if (recursive && numberingGap == 0) {
+            for (T entity : entities) {
+                entity.setChildrenCount((entity.getRightNum() - entity.getLeftNum() - 1) / 2);
+            }
+            recursive = false;
+        }
+        if (entities.isEmpty() || !direct && !recursive) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(entities.size());
         for (T entity : entities) {
-            Long childrenCount = getChildrenCount(entity.getId(), directOnly);
-            if (directOnly) {
-                entity.setDirectChildrenCount(childrenCount);
-            } else {
-                entity.setChildrenCount(childrenCount);
+            ids.add(entity.getId());
+        }
+        Map<Long, long[]> counts = support.countChildren(ids);
+        for (T entity : entities) {
+            long[] count = counts.get(entity.getId());
+            if (direct) {
+                entity.setDirectChildrenCount(count == null ? 0L : count[1]);
+            }
+            if (recursive) {
+                entity.setChildrenCount(count == null ? 0L : count[0]);
             }
         }
     }
@@ -168,6 +234,27 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
         return dtos;
     }
 
+    @Override
+    public List<T> getChildren(Long parentId, String orderField, boolean directOnly) throws GwtUtilException {
+        return getChildrenByParentId(ensureParentId(parentId), orderField, directOnly);
+    }
+
+    @Override
+    public T getParent(Long childId) throws GwtUtilException {
+        T childNode = getNodeById(childId);
+        return childNode.getDepth() > 0 ? getParentByChild(childId, -1L) : null;
+    }
+
+    @Override
+    public T insert(T node, Long parentId) throws GwtUtilException {
+        return insertNode(node, parentId);
+    }
+
+    @Override
+    public void delete(Long nodeId, boolean withChildren) throws GwtUtilException {
+        deleteNode(nodeId, withChildren);
+    }
+
     /**
      * Retrieves parent node by child node id.
      * 
@@ -180,17 +267,28 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
      */
     @SuppressWarnings("unchecked")
     public T getParentByChild(final Long childId, final Long depth) throws GwtUtilException {
-        T childNode = (T) session.get(entityClass, childId);
+        NestedSetSnapshot snapshot = snapshotCache != null ? getSnapshot() : null;
+        if (snapshot != null && !snapshot.contains(childId)) {
+            throw new NestedSetManagerException("Node with id=" + childId + " not found.");
+        }
+        T childNode = snapshot == null ? (T) session.get(entityClass, childId) : null;
+        long childDepth = snapshot != null ? snapshot.getDepth(childId) : childNode.getDepth();
         Long parentDepth = null;
         if (depth < 0) {
-            parentDepth = childNode.getDepth() + depth;
+            parentDepth = childDepth + depth;
             if (parentDepth < 0) {
-                throw new NestedSetManagerException(
-                        "parentDepth < 0, childDepth = " + childNode.getDepth() + " requested depth = " + depth);
+                throw new NestedSetManagerException("parentDepth < 0, childDepth = " + childDepth + " requested depth = " + depth);
             }
         } else {
             parentDepth = depth;
         }
+        if (snapshot != null) {
+            Long id = childId;
+            while (id != null && snapshot.getDepth(id) > parentDepth) {
+                id = snapshot.getParentId(id);
+            }
+            return id != null && snapshot.getDepth(id) == parentDepth ? (T) session.get(entityClass, id) : null;
+        }
         try {
             return (T) session.createCriteria(entityClass).add(Restrictions.le(LEFTNUM, childNode.getLeftNum()))
                     .add(Restrictions.ge(RIGHTNUM, childNode.getRightNum())).add(Restrictions.eq(DEPTH, parentDepth)).uniqueResult();
@@ -199,6 +297,107 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
         }
     }
 
+    /**
+     * Retrieves the path from the root node down to the node itself with one query. Parent links of the path nodes are set, so the path
+     * can be walked up from the last element.
+     * 
+     * @param childId
+     *            node id
+     * @return path nodes ordered by depth, the last one is the node itself
+     * @throws GwtUtilException
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<T> getAncestors(final Long childId) throws GwtUtilException {
+        T childNode = (T) session.get(entityClass, childId);
+        if (childNode == null) {
+            throw new NestedSetManagerException("Node with id=" + childId + " not found.");
+        }
+        session.disableFilter("depthFilter");
+        List<T> path = session.createCriteria(entityClass).add(Restrictions.le(LEFTNUM, childNode.getLeftNum()))
+                .add(Restrictions.ge(RIGHTNUM, childNode.getRightNum())).addOrder(Order.asc(LEFTNUM)).list();
+        linkPath(path);
+        return path;
+    }
+
+    /**
+     * Retrieves the paths of many nodes with one query, see {@link #getAncestors(Long)}. If the snapshot cache is enabled, the paths are
+     * built from the snapshot and only the path nodes are loaded by their ids. The nodes shared by several paths are the same instances.
+     * 
+     * @param childIds
+     *            node ids
+     * @return paths by node id in the order of childIds, unknown ids are skipped
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Long, List<T>> getAncestors(final Collection<Long> childIds) {
+        Map<Long, List<T>> result = new LinkedHashMap<>();
+        if (childIds.isEmpty()) {
+            return result;
+        }
+        session.disableFilter("depthFilter");
+        if (snapshotCache != null) {
+            NestedSetSnapshot snapshot = getSnapshot();
+            Set<Long> pathIds = new HashSet<>();
+            for (Long childId : childIds) {
+                if (snapshot.contains(childId)) {
+                    for (long id : snapshot.getAncestorIds(childId)) {
+                        pathIds.add(id);
+                    }
+                    pathIds.add(childId);
+                }
+            }
+            if (pathIds.isEmpty()) {
+                return result;
+            }
+            Map<Long, T> nodes = new HashMap<>();
+            for (T node : (List<T>) session.createCriteria(entityClass).add(Restrictions.in("id", pathIds)).list()) {
+                nodes.put(node.getId(), node);
+            }
+            for (Long childId : childIds) {
+                if (snapshot.contains(childId)) {
+                    List<T> path = new ArrayList<>();
+                    for (long id : snapshot.getAncestorIds(childId)) {
+                        path.add(nodes.get(id));
+                    }
+                    path.add(nodes.get(childId));
+                    linkPath(path);
+                    result.put(childId, path);
+                }
+            }
+            return result;
+        }
+        Map<Long, List<T>> paths = support.getPaths(childIds);
+        for (Long childId : childIds) {
+            List<T> path = paths.get(childId);
+            if (path != null) {
+                linkPath(path);
+                result.put(childId, path);
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> getNodesByIds(long[] ids, String orderField) {
+        if (ids.length == 0) {
+            return new ArrayList<>();
+        }
+        List<Long> idList = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            idList.add(id);
+        }
+        session.disableFilter("depthFilter");
+        return session.createCriteria(entityClass).add(Restrictions.in("id", idList)).addOrder(Order.asc(orderField)).list();
+    }
+
+    private void linkPath(List<T> path) {
+        T parent = null;
+        for (T node : path) {
+            node.setParent(parent);
+            parent = node;
+        }
+    }
+
     public Long getId(T parent, boolean getParent) throws GwtUtilException {
         if (parent != null) {
             if (getParent) {
@@ -217,6 +416,7 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
     }
 
     @SuppressWarnings("unchecked")
+    @Override
     public T getRootNode() throws GwtUtilException {
         try {
             return (T) session.createCriteria(entityClass).add(Restrictions.eq(LEFTNUM, 1L)).uniqueResult();
@@ -229,9 +429,81 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
         getByParentIdAndInsert(entities, 0L, parentNodeId);
     }
 
+    public int insertNodesBulk(final List<? extends T> entities, final Long parentNodeId) throws GwtUtilException {
+        return insertNodesBulk(entities, parentNodeId, BULK_BATCH_SIZE);
+    }
+
+    /**
+     * Imports a forest of nodes in one pass. The nodes are numbered in memory, the space for them is made with a single shift and then
+     * they're saved flushing and clearing the session every batchSize nodes. Set hibernate.jdbc.batch_size to the same value so the
+     * inserts are sent in JDBC batches. Note that the session is cleared after the import.
+     * 
+     * @param entities
+     *            nodes to import; the top level nodes should have null parent, the others should refer to their parents from this list
+     * @param parentNodeId
+     *            node to import to, use null for the root node
+     * @param batchSize
+     *            how many nodes are saved between the session flushes
+     * @return number of imported nodes
+     * @throws GwtUtilException
+     */
+    @SuppressWarnings("unchecked")
+    public int insertNodesBulk(final List<? extends T> entities, final Long parentNodeId, final int batchSize) throws GwtUtilException {
+        synchronized (lock) {
+            beginWrite();
+            final Long sureParentId = ensureParentId(parentNodeId);
+            T parentNode = (T) session.get(entityClass, sureParentId);
+            if (parentNode == null) {
+                throw new NestedSetManagerException("Parent node with id=" + sureParentId + " not found.");
+            }
+            session.refresh(parentNode);
+            Map<Long, List<T>> childrenBySourceId = new HashMap<>();
+            for (T entity : entities) {
+                Long sourceParentId = entity.getParent() == null ? 0L : entity.getParent().getId();
+                childrenBySourceId.computeIfAbsent(sourceParentId, k -> new ArrayList<>()).add(entity);
+            }
+            List<T> numbered = new ArrayList<>(entities.size());
+            numberNodes(childrenBySourceId, 0L, parentNode.getRightNum(), parentNode.getDepth() + 1, numbered);
+            if (numbered.isEmpty()) {
+                return 0;
+            }
+            log.debug("Bulk insert of {} nodes to parentNodeId: {}", numbered.size(), sureParentId);
+            updateNodes(parentNode.getRightNum(), 2L * numbered.size());
+            int saved = 0;
+            for (T node : numbered) {
+                session.save(node);
+                if (++saved % batchSize == 0) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+            session.flush();
+            session.clear();
+            return saved;
+        }
+    }
+
+    private long numberNodes(Map<Long, List<T>> childrenBySourceId, Long sourceId, long left, long depth, List<T> numbered) {
+        List<T> children = childrenBySourceId.get(sourceId);
+        if (children == null) {
+            return left;
+        }
+        for (T child : children) {
+            T newNode = ServerUtils.mapModel(child, entityClass);
+            newNode.setId(null);
+            newNode.setLeftNum(left);
+            newNode.setDepth(depth);
+            numbered.add(newNode);
+            left = numberNodes(childrenBySourceId, child.getId(), left + 1, depth + 1, numbered);
+            newNode.setRightNum(left++);
+        }
+        return left;
+    }
+
     @SuppressWarnings("unchecked")
     public T insertNode(final T node, Long parentId) throws GwtUtilException {
         synchronized (lock) {
+            beginWrite();
             final Long sureParentId = ensureParentId(parentId);
             T parentNode = (T) session.get(entityClass, sureParentId);
             if (parentNode == null) {
@@ -239,17 +511,22 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
             }
             session.refresh(parentNode);
             log.debug("Insert; parent node: {} new node: {} to parentNodeId: {}", parentNode, node, sureParentId);
-            node.setLeftNum(parentNode.getRightNum());
-            node.setRightNum(node.getLeftNum() + 1);
+            if (numberingGap > 0) {
+                placeSparse(node, parentNode);
+            } else {
+                node.setLeftNum(parentNode.getRightNum());
+                node.setRightNum(node.getLeftNum() + 1);
+                updateNodes(node.getLeftNum(), 2L);
+            }
             node.setDepth(parentNode.getDepth() + 1);
-            updateNodes(node.getLeftNum(), 2L);
             return (T) session.merge(node);
         }
     }
 
     @SuppressWarnings("unchecked")
-    public T insertRootNode(final T node) {
+    public T insertRootNode(final T node) throws NestedSetManagerException {
         synchronized (lock) {
+            beginWrite();
             node.setLeftNum(1L);
             node.setRightNum(2L);
             node.setDepth(0L);
@@ -262,6 +539,124 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
         return mapModel(insertNode(mapModel(dto, entityClass), parentId), entityClass);
     }
 
+    /**
+     * Enables the sparse numbering mode. New nodes take an unused slot after the last child of their parent, the slot width is a fixed
+     * part of the parent's interval (but no more than gap) so most inserts don't touch other rows. When the parent runs out of space the
+     * free space of the nearest ancestor having enough of it is spread evenly between that ancestor's descendants, only the rows of its
+     * subtree are renumbered; the root is widened if needed as nothing lies to the right of it. Deleted nodes leave their space unused.
+     * Note that {@link NestedSetNodeNG#isLeaf()} can't be used in this mode, annotate the direct children count instead. All managers of
+     * the tree must use the same mode, set the gap with {@link NSMFactory#setNumberingGap(Class, long)}.
+     * 
+     * @param numberingGap
+     *            maximum interval width of a new node, at least 2; use 0 for the default dense numbering
+     * @throws IllegalArgumentException
+     *             if the gap is negative or 1
+     */
+    public void setNumberingGap(long numberingGap) {
+        NestedSetSupport.checkNumberingGap(numberingGap);
+        this.numberingGap = numberingGap;
+    }
+
+    public long getNumberingGap() {
+        return numberingGap;
+    }
+
+    /**
+     * Enables the tree snapshot cache. Children counts are then calculated from the in-memory snapshot, the direct children (unless
+     * there are too many of them) and the parents are found in it and only loaded by their ids. Writes made through this manager
+     * invalidate it. Writes made bypassing the managers aren't tracked, call {@link NestedSetSnapshotCache#invalidate(Class)} after them.
+     * 
+     * @param snapshotCache
+     *            cache shared by the managers of the same tree, null to disable
+     */
+    public void setSnapshotCache(NestedSetSnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    public NestedSetSnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * Returns the actual tree snapshot to answer children, ancestors and counts queries without SQL.
+     * 
+     * @return tree snapshot
+     * @throws IllegalStateException
+     *             if the snapshot cache isn't set
+     */
+    public NestedSetSnapshot getSnapshot() {
+        if (snapshotCache == null) {
+            throw new IllegalStateException("Snapshot cache isn't set for " + entityName);
+        }
+        return snapshotCache.get(entityClass, session);
+    }
+
+    /**
+     * Enables the optimistic versioning of the tree, see {@link NSMFactory#setOptimisticVersioning(boolean)}.
+     * 
+     * @param optimisticVersioning
+     *            check and increment the tree version on every write
+     */
+    public void setOptimisticVersioning(boolean optimisticVersioning) {
+        this.optimisticVersioning = optimisticVersioning;
+    }
+
+    public boolean isOptimisticVersioning() {
+        return optimisticVersioning;
+    }
+
+    /**
+     * Reads the current tree version for the optimistic versioning. Read it along with the tree data and pass it to
+     * {@link #setTreeVersion(Long)} of the manager making the changes based on that data.
+     * 
+     * @return current tree version
+     */
+    public long readTreeVersion() {
+        return TreeVersions.get(session, entityName);
+    }
+
+    /**
+     * Sets the tree version the changes are based on, the first write fails with {@link NestedSetManagerException} if the tree has been
+     * modified since then. The version is incremented by every write of this manager.
+     * 
+     * @param treeVersion
+     *            version returned by {@link #readTreeVersion()}, null to read it on the first write
+     */
+    public void setTreeVersion(Long treeVersion) {
+        this.treeVersion = treeVersion;
+    }
+
+    /**
+     * @return tree version after the last write of this manager or the one set by {@link #setTreeVersion(Long)}
+     */
+    public Long getTreeVersion() {
+        return treeVersion;
+    }
+
+    private void beginWrite() throws NestedSetManagerException {
+        invalidateSnapshot();
+        if (optimisticVersioning) {
+            treeVersion = TreeVersions.increment(session, entityName, treeVersion != null ? treeVersion : readTreeVersion());
+        }
+    }
+
+    private void invalidateSnapshot() {
+        if (snapshotCache != null) {
+            snapshotCache.invalidate(entityClass, session);
+        }
+    }
+
+    private void placeSparse(T node, T parentNode) throws NestedSetManagerException {
+        long[] slot = support.placeSparse(parentNode.getLeftNum(), parentNode.getRightNum(), numberingGap);
+        if (slot == null) {
+            support.spread(parentNode.getLeftNum(), parentNode.getRightNum());
+            session.refresh(parentNode);
+            slot = support.placeSparse(parentNode.getLeftNum(), parentNode.getRightNum(), numberingGap);
+        }
+        node.setLeftNum(slot[0]);
+        node.setRightNum(slot[1]);
+    }
+
     private void updateNodes(Long left, Long shift) {
         synchronized (lock) {
             session.createQuery(UPDATE + entityName + " node set node.leftnum = node.leftnum + :shift where node.leftnum >= :left")
@@ -271,15 +666,6 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
         }
     }
 
-    private void shiftNodes(Long left, Long right, Long shift) {
-        synchronized (lock) {
-            session.createQuery(
-                    UPDATE + entityName + " node set node.leftnum = node.leftnum + :shift, node.rightnum = node.rightnum + :shift where "
-                            + "node.leftnum >= :left and node.rightnum <= :right")
-                    .setLong(LEFT, left).setLong(RIGHT, right).setLong(SHIFT, shift).executeUpdate();
-        }
-    }
-
     private Long ensureParentId(Long parentId) throws GwtUtilException {
         if (parentId == null) {
             T rootNode = getRootNode();
@@ -298,39 +684,184 @@ public class NestedSetManagerNG<T extends NestedSetNodeNG> {
     @SuppressWarnings("unchecked")
     public void deleteNode(final Long nodeId, final boolean withChildren) throws NestedSetManagerException {
         synchronized (lock) {
+            beginWrite();
             T node = (T) session.get(entityClass, nodeId);
-            if (node.getRightNum() - node.getLeftNum() > 1 && !withChildren) {
+            boolean hasChildren = numberingGap > 0 ? support.getLastChildRight(node.getLeftNum(), node.getRightNum()) != null
+                    : node.getRightNum() - node.getLeftNum() > 1;
+            if (hasChildren && !withChildren) {
                 throw new NestedSetManagerException("Need to delete more than one node but children deleting was explicitly prohibited.");
             }
             session.createQuery("delete from " + entityName + " node where node.leftnum >= :left and node.rightnum <= :right")
                     .setLong(LEFT, node.getLeftNum()).setLong(RIGHT, node.getRightNum()).executeUpdate();
-            updateNodes(node.getLeftNum(), node.getLeftNum() - node.getRightNum() - 1);
+            if (numberingGap == 0) {
+                updateNodes(node.getLeftNum(), node.getLeftNum() - node.getRightNum() - 1);
+            }
         }
     }
 
+    /**
+     * Deletes many nodes at once. Nested intervals are merged, all of them are removed with one statement and the numbering is compacted
+     * with one update of the left and one of the right numbers: the numbers between two deleted intervals are shifted by the total width
+     * deleted before them. In the sparse numbering mode the space is left unused.
+     * 
+     * @param nodeIds
+     *            nodes to delete, unknown ids are ignored
+     * @param withChildren
+     *            allow deleting the descendants that aren't listed in nodeIds
+     * @return number of deleted rows
+     * @throws NestedSetManagerException
+     */
+    @SuppressWarnings("unchecked")
+    public int deleteNodes(final Collection<Long> nodeIds, final boolean withChildren) throws NestedSetManagerException {
+        if (nodeIds.isEmpty()) {
+            return 0;
+        }
+        synchronized (lock) {
+            beginWrite();
+            session.disableFilter("depthFilter");
+            List<Object[]> intervals = session
+                    .createQuery(
+                            "select node.leftnum, node.rightnum from " + entityName + " node where node.id in (:ids) order by node.leftnum")
+                    .setParameterList("ids", nodeIds).list();
+            List<long[]> merged = new ArrayList<>();
+            for (Object[] interval : intervals) {
+                long left = (Long) interval[0];
+                long right = (Long) interval[1];
+                if (!merged.isEmpty() && merged.get(merged.size() - 1)[1] > right) {
+                    continue; // a descendant of an already listed node
+                }
+                merged.add(new long[] { left, right });
+            }
+            if (merged.isEmpty()) {
+                return 0;
+            }
+            if (!withChildren) {
+                long descendants = 0;
+                for (long[] interval : merged) {
+                    descendants += interval[1] - interval[0] - 1;
+                }
+                if (numberingGap > 0 || descendants > 0) {
+                    descendants = (Long) session
+                            .createQuery(
+                                    "select count(node) from " + entityName + " node where " + intervalsCondition(merged.size(), false))
+                            .setProperties(intervalsParams(merged)).uniqueResult();
+                }
+                if (descendants > intervals.size() - merged.size()) {
+                    throw new NestedSetManagerException(
+                            "Need to delete more than one node but children deleting was explicitly prohibited.");
+                }
+            }
+            int deleted = session.createQuery("delete from " + entityName + " node where " + intervalsCondition(merged.size(), true))
+                    .setProperties(intervalsParams(merged)).executeUpdate();
+            if (numberingGap == 0) {
+                compact(merged, LEFTNUM);
+                compact(merged, RIGHTNUM);
+            }
+            return deleted;
+        }
+    }
+
+    private String intervalsCondition(int count, boolean inclusive) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(" or ");
+            }
+            sb.append(inclusive ? "(node.leftnum >= :left" : "(node.leftnum > :left").append(i)
+                    .append(inclusive ? " and node.rightnum <= :right" : " and node.rightnum < :right").append(i).append(")");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Shifts the numbers after the deleted intervals back by the total width deleted before them with one statement, the case picks the
+     * last interval ending before the number.
+     */
+    private void compact(List<long[]> intervals, String column) {
+        long[] shifts = new long[intervals.size()];
+        long shift = 0;
+        for (int i = 0; i < intervals.size(); i++) {
+            shift += intervals.get(i)[1] - intervals.get(i)[0] + 1;
+            shifts[i] = shift;
+        }
+        StringBuilder sb = new StringBuilder(UPDATE).append(entityName).append(" node set node.").append(column).append(" = node.")
+                .append(column).append(" - case");
+        for (int i = intervals.size() - 1; i >= 0; i--) {
+            sb.append(" when node.").append(column).append(" > :right").append(i).append(" then ").append(shifts[i]).append('L');
+        }
+        sb.append(" else 0L end where node.").append(column).append(" > :right0");
+        session.createQuery(sb.toString()).setProperties(intervalsParams(intervals)).executeUpdate();
+    }
+
+    private Map<String, Object> intervalsParams(List<long[]> intervals) {
+        Map<String, Object> params = new HashMap<>();
+        for (int i = 0; i < intervals.size(); i++) {
+            params.put(LEFT + i, intervals.get(i)[0]);
+            params.put(RIGHT + i, intervals.get(i)[1]);
+        }
+        return params;
+    }
+
+    /**
+     * Moves the node with its descendants to the end of the new parent's children list. The descendants are never loaded, the numbers and
+     * depths are changed with four bulk updates: the subtree numbers are negated to take it out of the tree, the nodes between the old
+     * and the new positions are shifted by the subtree width and the subtree is put back to the freed space. Entities of this tree loaded
+     * to the session before the move are stale after it, clear the session or refresh them.
+     * 
+     * @param nodeId
+     *            node to move
+     * @param newParentId
+     *            new parent node
+     * @throws GwtUtilException
+     */
+    @SuppressWarnings("unchecked")
+    @Override
     public void move(Long nodeId, Long newParentId) throws GwtUtilException {
         synchronized (lock) {
-            T node = getNodeById(nodeId);
-            T parentNode = getNodeById(newParentId);
-            if (parentNode.getLeftNum() >= node.getLeftNum() && parentNode.getRightNum() <= node.getRightNum()) {
-                throw new NestedSetManagerException("Can't move node to its own child or itself.");
+            beginWrite();
+            T node = (T) session.get(entityClass, nodeId);
+            if (node == null) {
+                throw new NestedSetManagerException("Node with id=" + nodeId + " not found.");
             }
-            long width = node.getRightNum() - node.getLeftNum() + 1;
-            long depthDiff = parentNode.getDepth() - node.getDepth() + 1;
-            for (T child : getChildrenByParentId(node.getId(), "id", false)) {
-                child.setDepth(child.getDepth() + depthDiff);
+            T parentNode = (T) session.get(entityClass, newParentId);
+            if (parentNode == null) {
+                throw new NestedSetManagerException("Parent node with id=" + newParentId + " not found.");
             }
-            node.setDepth(node.getDepth() + depthDiff);
-            session.merge(node);
-            updateNodes(parentNode.getRightNum(), width); // expand parent
-            session.flush();
-            session.clear();
             session.refresh(node);
             session.refresh(parentNode);
-            long moveDistance = parentNode.getRightNum() - node.getRightNum() - 1;
-            shiftNodes(node.getLeftNum(), node.getRightNum(), moveDistance); // move nodes
-            updateNodes(node.getLeftNum() + 1, -width); // collapse empty space
+            long left = node.getLeftNum();
+            long right = node.getRightNum();
+            long parentRight = parentNode.getRightNum();
+            if (parentNode.getLeftNum() >= left && parentRight <= right) {
+                throw new NestedSetManagerException("Can't move node to its own child or itself.");
+            }
+            long width = right - left + 1;
+            long depthDiff = parentNode.getDepth() - node.getDepth() + 1;
+            session.createQuery(UPDATE + entityName
+                    + " node set node.leftnum = -node.leftnum, node.rightnum = -node.rightnum, node.depth = node.depth + :depth "
+                    + "where node.leftnum >= :left and node.rightnum <= :right").setLong(DEPTH, depthDiff).setLong(LEFT, left)
+                    .setLong(RIGHT, right).executeUpdate();
+            long distance;
+            if (parentRight > right) {
+                shiftRange(right + 1, parentRight - 1, -width);
+                distance = parentRight - 1 - right;
+            } else {
+                shiftRange(parentRight, left - 1, width);
+                distance = parentRight - left;
+            }
+            session.createQuery(UPDATE + entityName
+                    + " node set node.leftnum = :shift - node.leftnum, node.rightnum = :shift - node.rightnum where node.leftnum < 0")
+                    .setLong(SHIFT, distance).executeUpdate();
         }
     }
 
+    private void shiftRange(long from, long to, long shift) {
+        session.createQuery(
+                UPDATE + entityName + " node set node.leftnum = node.leftnum + :shift where node.leftnum between :left and :right")
+                .setLong(LEFT, from).setLong(RIGHT, to).setLong(SHIFT, shift).executeUpdate();
+        session.createQuery(
+                UPDATE + entityName + " node set node.rightnum = node.rightnum + :shift where node.rightnum between :left and :right")
+                .setLong(LEFT, from).setLong(RIGHT, to).setLong(SHIFT, shift).executeUpdate();
+    }
+
 }
\ No newline at end of file
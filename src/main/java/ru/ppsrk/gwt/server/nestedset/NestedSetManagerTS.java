@@ -2,8 +2,13 @@ package ru.ppsrk.gwt.server.nestedset;
 
 import static ru.ppsrk.gwt.server.ServerUtils.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.NonUniqueResultException;
 import org.hibernate.Session;
@@ -25,6 +30,10 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
     private String entityName;
     private final Object lock;
     private Session session;
+    private final NestedSetSupport support;
+    private long numberingGap = 0;
+    private boolean optimisticVersioning = false;
+    private Long treeVersion;
 
     public enum AnnotateChildren {
         NONE, DIRECT, RECURSIVE, BOTH
@@ -36,6 +45,7 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
         this.entityClass = entityClass;
         this.dtoClass = dtoClass;
         entityName = entityClass.getSimpleName();
+        support = new NestedSetSupport(entityClass, session);
     }
 
     private void getByParentIdAndInsert(List<? extends Hierarchic> hierarchics, Long hierarchicRootId, Long parentNodeId)
@@ -87,20 +97,7 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
                 .createQuery(
                         "from " + entityName + " node where node.leftnum > :left and node.rightnum < :right order by node." + orderField)
                 .setLong("left", parentNode.getLeftNum()).setLong("right", parentNode.getRightNum()).list();
-        switch (annotateChildren) {
-        case DIRECT:
-            annotateChildrenCount(entities, true);
-            break;
-        case RECURSIVE:
-            annotateChildrenCount(entities, false);
-            break;
-        case BOTH:
-            annotateChildrenCount(entities, true);
-            annotateChildrenCount(entities, false);
-            break;
-        default:
-            break;
-        }
+        annotateChildrenCount(entities, annotateChildren);
         return entities;
     }
 
@@ -116,12 +113,42 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
     }
 
     public void annotateChildrenCount(List<T> entities, boolean directOnly) throws LogicException, ClientAuthException {
+        annotateChildrenCount(entities, directOnly ? AnnotateChildren.DIRECT : AnnotateChildren.RECURSIVE);
+    }
+
+    /**
+     * Sets the children counts for all entities using at most one query. The recursive count is calculated from the node numbers unless
+     * the sparse numbering is enabled, the direct count is retrieved with a single grouped self-join.
+     * 
+     * @param entities
+     *            entities to annotate
+     * @param annotateChildren
+     *            which counts to set
+     */
+    public void annotateChildrenCount(List<T> entities, AnnotateChildren annotateChildren) {
+        boolean direct = annotateChildren == AnnotateChildren.DIRECT || annotateChildren == AnnotateChildren.BOTH;
+        boolean recursive = annotateChildren == AnnotateChildren.RECURSIVE || annotateChildren == AnnotateChildren.BOTH;
+        if (recursive && numberingGap == 0) {
+            for (T entity : entities) {
+                entity.setChildrenCount((entity.getRightNum() - entity.getLeftNum() - 1) / 2);
+            }
+            recursive = false;
+        }
+        if (entities.isEmpty() || !direct && !recursive) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(entities.size());
         for (T entity : entities) {
-            Long childrenCount = getChildrenCount(entity.getId(), directOnly);
-            if (directOnly) {
-                entity.setDirectChildrenCount(childrenCount);
-            } else {
-                entity.setChildrenCount(childrenCount);
+            ids.add(entity.getId());
+        }
+        Map<Long, long[]> counts = support.countChildren(ids);
+        for (T entity : entities) {
+            long[] count = counts.get(entity.getId());
+            if (direct) {
+                entity.setDirectChildrenCount(count == null ? 0L : count[1]);
+            }
+            if (recursive) {
+                entity.setChildrenCount(count == null ? 0L : count[0]);
             }
         }
     }
@@ -201,6 +228,69 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
         }
     }
 
+    /**
+     * Retrieves the path from the root node down to the node itself with one query. Parent links of the path elements are set, so the
+     * path can be walked up from the last element.
+     * 
+     * @param childId
+     *            node id
+     * @return path elements ordered by depth, the last one is the node itself
+     * @throws LogicException
+     * @throws ClientAuthException
+     */
+    @SuppressWarnings("unchecked")
+    public List<D> getAncestors(final Long childId) throws LogicException, ClientAuthException {
+        T childNode = (T) session.get(entityClass, childId);
+        if (childNode == null) {
+            throw new NestedSetManagerException("Node with id=" + childId + " not found.");
+        }
+        session.disableFilter("depthFilter");
+        List<T> path = session
+                .createQuery("from " + entityName + " node where node.leftnum <= :left and node.rightnum >= :right order by node.leftnum")
+                .setLong("left", childNode.getLeftNum()).setLong("right", childNode.getRightNum()).list();
+        return linkPath(path, new HashMap<Long, D>());
+    }
+
+    /**
+     * Retrieves the paths of many nodes with one query, see {@link #getAncestors(Long)}. The elements shared by several paths are the same
+     * instances.
+     * 
+     * @param childIds
+     *            node ids
+     * @return paths by node id in the order of childIds, unknown ids are skipped
+     */
+    public Map<Long, List<D>> getAncestors(final Collection<Long> childIds) {
+        Map<Long, List<D>> result = new LinkedHashMap<>();
+        if (childIds.isEmpty()) {
+            return result;
+        }
+        Map<Long, List<T>> paths = support.getPaths(childIds);
+        Map<Long, D> mapped = new HashMap<>();
+        for (Long childId : childIds) {
+            List<T> path = paths.get(childId);
+            if (path != null) {
+                result.put(childId, linkPath(path, mapped));
+            }
+        }
+        return result;
+    }
+
+    private List<D> linkPath(List<T> path, Map<Long, D> mapped) {
+        List<D> result = new ArrayList<>(path.size());
+        D parent = null;
+        for (T node : path) {
+            D dto = mapped.get(node.getId());
+            if (dto == null) {
+                dto = mapModel(node, dtoClass);
+                dto.setParent(parent);
+                mapped.put(node.getId(), dto);
+            }
+            result.add(dto);
+            parent = dto;
+        }
+        return result;
+    }
+
     public Long getId(D parent, boolean getParent) throws LogicException, ClientAuthException {
         if (parent != null) {
             if (getParent) {
@@ -235,22 +325,29 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
     @SuppressWarnings("unchecked")
     public T insertNode(final T node, Long parentId) throws LogicException, ClientAuthException {
         synchronized (lock) {
+            beginWrite();
             final Long sureParentId = ensureParentId(parentId);
             T parentNode = (T) session.get(entityClass, sureParentId);
             if (parentNode == null) {
                 throw new NestedSetManagerException("Parent node with id=" + sureParentId + " not found.");
             }
+            session.refresh(parentNode);
             log.debug("Insert; parent node: " + parentNode + " new node: " + node + " to parentNodeId: " + sureParentId);
-            node.setLeftNum(parentNode.getRightNum());
-            node.setRightNum(node.getLeftNum() + 1);
+            if (numberingGap > 0) {
+                placeSparse(node, parentNode);
+            } else {
+                node.setLeftNum(parentNode.getRightNum());
+                node.setRightNum(node.getLeftNum() + 1);
+                updateNodes(node.getLeftNum(), 2L, session);
+            }
             node.setDepth(parentNode.getDepth() + 1);
-            updateNodes(node.getLeftNum(), 2L, session);
             return (T) session.merge(node);
         }
     }
 
     public T insertRootNode(final T node) throws LogicException, ClientAuthException {
         synchronized (lock) {
+            beginWrite();
             node.setLeftNum(1L);
             node.setRightNum(2L);
             node.setDepth(0L);
@@ -265,6 +362,83 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
         return mapModel(insertNode(mapModel(dto, entityClass), parentId), dtoClass);
     }
 
+    /**
+     * Enables the sparse numbering mode, see {@link NestedSetManagerNG#setNumberingGap(long)}. All managers of the tree must use the same
+     * mode, set the gap with {@link NSMFactory#setNumberingGap(Class, long)}.
+     * 
+     * @param numberingGap
+     *            maximum interval width of a new node, at least 2; use 0 for the default dense numbering
+     * @throws IllegalArgumentException
+     *             if the gap is negative or 1
+     */
+    public void setNumberingGap(long numberingGap) {
+        NestedSetSupport.checkNumberingGap(numberingGap);
+        this.numberingGap = numberingGap;
+    }
+
+    public long getNumberingGap() {
+        return numberingGap;
+    }
+
+    /**
+     * Enables the optimistic versioning of the tree, see {@link NSMFactory#setOptimisticVersioning(boolean)}.
+     * 
+     * @param optimisticVersioning
+     *            check and increment the tree version on every write
+     */
+    public void setOptimisticVersioning(boolean optimisticVersioning) {
+        this.optimisticVersioning = optimisticVersioning;
+    }
+
+    public boolean isOptimisticVersioning() {
+        return optimisticVersioning;
+    }
+
+    /**
+     * Reads the current tree version for the optimistic versioning. Read it along with the tree data and pass it to
+     * {@link #setTreeVersion(Long)} of the manager making the changes based on that data.
+     * 
+     * @return current tree version
+     */
+    public long readTreeVersion() {
+        return TreeVersions.get(session, entityName);
+    }
+
+    /**
+     * Sets the tree version the changes are based on, the first write fails with {@link NestedSetManagerException} if the tree has been
+     * modified since then. The version is incremented by every write of this manager.
+     * 
+     * @param treeVersion
+     *            version returned by {@link #readTreeVersion()}, null to read it on the first write
+     */
+    public void setTreeVersion(Long treeVersion) {
+        this.treeVersion = treeVersion;
+    }
+
+    /**
+     * @return tree version after the last write of this manager or the one set by {@link #setTreeVersion(Long)}
+     */
+    public Long getTreeVersion() {
+        return treeVersion;
+    }
+
+    private void beginWrite() throws NestedSetManagerException {
+        if (optimisticVersioning) {
+            treeVersion = TreeVersions.increment(session, entityName, treeVersion != null ? treeVersion : readTreeVersion());
+        }
+    }
+
+    private void placeSparse(T node, T parentNode) throws NestedSetManagerException {
+        long[] slot = support.placeSparse(parentNode.getLeftNum(), parentNode.getRightNum(), numberingGap);
+        if (slot == null) {
+            support.spread(parentNode.getLeftNum(), parentNode.getRightNum());
+            session.refresh(parentNode);
+            slot = support.placeSparse(parentNode.getLeftNum(), parentNode.getRightNum(), numberingGap);
+        }
+        node.setLeftNum(slot[0]);
+        node.setRightNum(slot[1]);
+    }
+
     private void updateNodes(Long left, Long shift, Session session) {
         synchronized (lock) {
             session.createQuery("update " + entityName + " node set node.leftnum = node.leftnum + :shift where node.leftnum >= :left")
@@ -292,13 +466,18 @@ public class NestedSetManagerTS<T extends NestedSetNode, D extends SettableParen
     @SuppressWarnings("unchecked")
     public void deleteNode(final Long nodeId, final boolean withChildren) throws NestedSetManagerException {
         synchronized (lock) {
+            beginWrite();
             T node = (T) session.get(entityClass, nodeId);
-            if (node.getRightNum() - node.getLeftNum() > 1 && !withChildren) {
+            boolean hasChildren = numberingGap > 0 ? support.getLastChildRight(node.getLeftNum(), node.getRightNum()) != null
+                    : node.getRightNum() - node.getLeftNum() > 1;
+            if (hasChildren && !withChildren) {
                 throw new NestedSetManagerException("Need to delete more than one node but children deleting was explicitly prohibited.");
             }
             session.createQuery("delete from " + entityName + " node where node.leftnum >= :left and node.rightnum <= :right")
                     .setLong("left", node.getLeftNum()).setLong("right", node.getRightNum()).executeUpdate();
-            updateNodes(node.getLeftNum(), node.getLeftNum() - node.getRightNum() - 1, session);
+            if (numberingGap == 0) {
+                updateNodes(node.getLeftNum(), node.getLeftNum() - node.getRightNum() - 1, session);
+            }
         }
     }
 }
\ No newline at end of file
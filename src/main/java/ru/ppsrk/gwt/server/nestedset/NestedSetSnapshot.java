@@ -0,0 +1,204 @@
+package ru.ppsrk.gwt.server.nestedset;
+
+import java.util.Arrays;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * Immutable in-memory copy of a whole nested set tree. Nodes are kept in primitive arrays sorted by leftnum, so the tree queries are
+ * answered with array scans and binary search without touching the database.
+ */
+public class NestedSetSnapshot {
+
+    private final long version;
+    private final int size;
+    private final long[] ids;
+    private final long[] lefts;
+    private final long[] rights;
+    private final long[] depths;
+    private final int[] parents;
+    // ids sorted for binary search and the corresponding node indexes
+    private final long[] sortedIds;
+    private final int[] sortedIdIndexes;
+
+    NestedSetSnapshot(long version, int size, long[] ids, long[] lefts, long[] rights, long[] depths) {
+        this.version = version;
+        this.size = size;
+        this.ids = ids;
+        this.lefts = lefts;
+        this.rights = rights;
+        this.depths = depths;
+        parents = new int[size];
+        int[] stack = new int[size];
+        int top = -1;
+        for (int i = 0; i < size; i++) {
+            while (top >= 0 && rights[stack[top]] < lefts[i]) {
+                top--;
+            }
+            parents[i] = top >= 0 ? stack[top] : -1;
+            stack[++top] = i;
+        }
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(ids[a], ids[b]));
+        sortedIds = new long[size];
+        sortedIdIndexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedIdIndexes[i] = order[i];
+            sortedIds[i] = ids[order[i]];
+        }
+    }
+
+    /**
+     * Loads the whole tree with one ordered scan.
+     *
+     * @param session
+     *            Hibernate session to use
+     * @param entityName
+     *            nested set entity name
+     * @param version
+     *            version of the tree the snapshot represents
+     * @return tree snapshot
+     */
+    public static NestedSetSnapshot load(Session session, String entityName, long version) {
+        session.disableFilter("depthFilter");
+        int size = 0;
+        long[] ids = new long[1024];
+        long[] lefts = new long[1024];
+        long[] rights = new long[1024];
+        long[] depths = new long[1024];
+        ScrollableResults results = session
+                .createQuery("select node.id, node.leftnum, node.rightnum, node.depth from " + entityName + " node order by node.leftnum")
+                .setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                    lefts = Arrays.copyOf(lefts, size * 2);
+                    rights = Arrays.copyOf(rights, size * 2);
+                    depths = Arrays.copyOf(depths, size * 2);
+                }
+                ids[size] = results.getLong(0);
+                lefts[size] = results.getLong(1);
+                rights[size] = results.getLong(2);
+                depths[size] = results.getLong(3);
+                size++;
+            }
+        } finally {
+            results.close();
+        }
+        return new NestedSetSnapshot(version, size, ids, lefts, rights, depths);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return root node id or null if the tree is empty
+     */
+    public Long getRootId() {
+        return size > 0 ? ids[0] : null;
+    }
+
+    public boolean contains(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    public long getDepth(long id) {
+        return depths[checkedIndexOf(id)];
+    }
+
+    /**
+     * @return parent node id or null for the root node
+     */
+    public Long getParentId(long id) {
+        int parent = parents[checkedIndexOf(id)];
+        return parent >= 0 ? ids[parent] : null;
+    }
+
+    /**
+     * Returns the children ids in the tree order.
+     *
+     * @param parentId
+     *            parent node id
+     * @param directOnly
+     *            return only direct descendants
+     * @return children ids
+     */
+    public long[] getChildIds(long parentId, boolean directOnly) {
+        int index = checkedIndexOf(parentId);
+        int end = subtreeEnd(index);
+        if (!directOnly) {
+            return Arrays.copyOfRange(ids, index + 1, end);
+        }
+        long[] result = new long[end - index - 1];
+        int count = 0;
+        for (int i = index + 1; i < end; i = subtreeEnd(i)) {
+            result[count++] = ids[i];
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    public long getChildrenCount(long parentId, boolean directOnly) {
+        int index = checkedIndexOf(parentId);
+        int end = subtreeEnd(index);
+        if (!directOnly) {
+            return end - index - 1L;
+        }
+        long count = 0;
+        for (int i = index + 1; i < end; i = subtreeEnd(i)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the ancestor ids from the root node down to the direct parent of the node.
+     *
+     * @param id
+     *            node id
+     * @return ancestor ids
+     */
+    public long[] getAncestorIds(long id) {
+        int index = checkedIndexOf(id);
+        int count = 0;
+        for (int i = parents[index]; i >= 0; i = parents[i]) {
+            count++;
+        }
+        long[] result = new long[count];
+        for (int i = parents[index]; i >= 0; i = parents[i]) {
+            result[--count] = ids[i];
+        }
+        return result;
+    }
+
+    private int indexOf(long id) {
+        int pos = Arrays.binarySearch(sortedIds, 0, size, id);
+        return pos >= 0 ? sortedIdIndexes[pos] : -1;
+    }
+
+    private int checkedIndexOf(long id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            throw new IllegalArgumentException("Node with id=" + id + " is not in the snapshot.");
+        }
+        return index;
+    }
+
+    /**
+     * @return index of the first node after the subtree of the given node
+     */
+    private int subtreeEnd(int index) {
+        int pos = Arrays.binarySearch(lefts, index + 1, size, rights[index]);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+}
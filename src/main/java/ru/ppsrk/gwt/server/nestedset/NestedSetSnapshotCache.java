@@ -0,0 +1,118 @@
+package ru.ppsrk.gwt.server.nestedset;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+
+/**
+ * Keeps one {@link NestedSetSnapshot} per entity class. Each tree has a version that's bumped on every write made through the managers,
+ * a snapshot of an outdated version is reloaded on the next access. A snapshot loaded by a session that has changed the tree in its
+ * current transaction sees the uncommitted changes so it's used by that session only and never cached.
+ */
+public class NestedSetSnapshotCache {
+
+    private final ConcurrentMap<Class<?>, NestedSetSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, AtomicLong> versions = new ConcurrentHashMap<>();
+    // sessions with uncommitted changes by tree
+    private final ConcurrentMap<Class<?>, Set<Session>> writers = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Returns the actual snapshot of the tree, loading it if necessary.
+     *
+     * @param entityClass
+     *            nested set entity class
+     * @param session
+     *            Hibernate session used to load the tree
+     * @return tree snapshot
+     */
+    public NestedSetSnapshot get(Class<?> entityClass, Session session) {
+        AtomicLong version = getVersion(entityClass);
+        long currentVersion = version.get();
+        boolean writer = getWriters(entityClass).contains(session);
+        NestedSetSnapshot snapshot = snapshots.get(entityClass);
+        if (snapshot != null && snapshot.getVersion() == currentVersion && !writer) {
+            hits.incrementAndGet();
+            return snapshot;
+        }
+        misses.incrementAndGet();
+        snapshot = NestedSetSnapshot.load(session, entityClass.getSimpleName(), currentVersion);
+        if (!writer && version.get() == currentVersion) {
+            snapshots.put(entityClass, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the snapshot of the tree. Called by the managers on every write.
+     *
+     * @param entityClass
+     *            nested set entity class
+     */
+    public void invalidate(Class<?> entityClass) {
+        getVersion(entityClass).incrementAndGet();
+        snapshots.remove(entityClass);
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops the snapshot now and once again after the current transaction completes so that a snapshot loaded by another session before
+     * the commit isn't kept. Until then the snapshots loaded by this session aren't cached.
+     *
+     * @param entityClass
+     *            nested set entity class
+     * @param session
+     *            session making the changes
+     */
+    public void invalidate(final Class<?> entityClass, final Session session) {
+        invalidate(entityClass);
+        if (session.getTransaction().isActive() && getWriters(entityClass).add(session)) {
+            session.getTransaction().registerSynchronization(new Synchronization() {
+
+                @Override
+                public void beforeCompletion() {
+                    // nothing to do before the commit
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    getWriters(entityClass).remove(session);
+                    invalidate(entityClass);
+                }
+            });
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    private AtomicLong getVersion(Class<?> entityClass) {
+        return versions.computeIfAbsent(entityClass, k -> new AtomicLong());
+    }
+
+    private Set<Session> getWriters(Class<?> entityClass) {
+        return writers.computeIfAbsent(entityClass, k -> Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>()));
+    }
+}
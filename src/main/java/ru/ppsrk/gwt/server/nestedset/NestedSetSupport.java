@@ -0,0 +1,215 @@
+package ru.ppsrk.gwt.server.nestedset;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.JDBCException;
+import org.hibernate.Session;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.ppsrk.gwt.client.NestedSetManagerException;
+
+/**
+ * Queries shared by {@link NestedSetManagerNG} and {@link NestedSetManagerTS}: the sparse numbering, the children counts and the
+ * ancestor paths. Works with the node numbers and ids only, the managers deal with their entity types.
+ */
+final class NestedSetSupport {
+
+    private static final String LEFT = "left";
+    private static final String RIGHT = "right";
+    private static final String LEFTNUM = "leftnum";
+    private static final String RIGHTNUM = "rightnum";
+    // a new node takes this part of its parent's interval in the sparse mode
+    private static final long SPARSE_CHILDREN = 8;
+    // minimal distance between the neighbour numbers after the space is spread, leaves a free slot between any two of them
+    private static final long SPREAD_STEP = 3;
+    private static final int RENUMBER_BATCH_SIZE = 1000;
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private final Class<?> entityClass;
+    private final String entityName;
+    private final Session session;
+
+    NestedSetSupport(Class<?> entityClass, Session session) {
+        this.entityClass = entityClass;
+        this.session = session;
+        entityName = entityClass.getSimpleName();
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the gap is negative or 1
+     */
+    static void checkNumberingGap(long numberingGap) {
+        if (numberingGap < 0 || numberingGap == 1) {
+            throw new IllegalArgumentException("Numbering gap should be 0 or at least 2, got " + numberingGap);
+        }
+    }
+
+    /**
+     * @return right number of the last descendant of the interval or null if there are none
+     */
+    Long getLastChildRight(long left, long right) {
+        session.disableFilter("depthFilter");
+        return (Long) session
+                .createQuery("select max(node.rightnum) from " + entityName + " node where node.leftnum > :left and node.rightnum < :right")
+                .setLong(LEFT, left).setLong(RIGHT, right).uniqueResult();
+    }
+
+    /**
+     * Finds the slot of a new last child of the parent in the sparse numbering mode. The slot width is a fixed part of the parent's
+     * interval but no more than the gap.
+     *
+     * @return left and right numbers of the new node or null if the parent is full and {@link #spread(long, long)} is needed
+     */
+    long[] placeSparse(long parentLeft, long parentRight, long numberingGap) {
+        long start = getFreeStart(parentLeft, parentRight);
+        if (parentRight - start - 1 < 2) {
+            return null;
+        }
+        long slice = (parentRight - parentLeft - 1) / SPARSE_CHILDREN;
+        long width = Math.min(parentRight - start - 1, Math.max(2, Math.min(numberingGap, slice)));
+        return new long[] { start + 1, start + width };
+    }
+
+    private long getFreeStart(long parentLeft, long parentRight) {
+        Long lastChildRight = getLastChildRight(parentLeft, parentRight);
+        return lastChildRight == null ? parentLeft : lastChildRight;
+    }
+
+    /**
+     * Renumbers the subtree of the nearest ancestor of the node (or the node itself) wide enough to have {@link #SPREAD_STEP} between all
+     * the numbers of its descendants, so the node gets a free slot after its last child. The root is widened if there's no such ancestor,
+     * nothing lies to the right of it. The entities of the tree loaded to the session are stale after that.
+     *
+     * @throws NestedSetManagerException
+     *             if the interval has no root
+     */
+    @SuppressWarnings("unchecked")
+    void spread(long parentLeft, long parentRight) throws NestedSetManagerException {
+        session.disableFilter("depthFilter");
+        List<Object[]> ancestors = session
+                .createQuery("select node.id, node.leftnum, node.rightnum from " + entityName
+                        + " node where node.leftnum <= :left and node.rightnum >= :right order by node.leftnum desc")
+                .setLong(LEFT, parentLeft).setLong(RIGHT, parentRight).list();
+        for (Object[] ancestor : ancestors) {
+            long left = (Long) ancestor[1];
+            long right = (Long) ancestor[2];
+            long slots = 2 * (Long) session
+                    .createQuery("select count(node) from " + entityName + " node where node.leftnum > :left and node.rightnum < :right")
+                    .setLong(LEFT, left).setLong(RIGHT, right).uniqueResult() + 1;
+            if (right - left < SPREAD_STEP * slots) {
+                if (left != 1L) {
+                    continue;
+                }
+                right = left + Math.max(2 * SPREAD_STEP * slots, 2 * (right - left));
+                session.createQuery("update " + entityName + " node set node.rightnum = :right where node.id = :id")
+                        .setLong(RIGHT, right).setParameter("id", ancestor[0]).executeUpdate();
+            }
+            log.debug("Spreading the space of node {} between {} descendants", ancestor[0], slots / 2);
+            renumber(left, right, slots);
+            return;
+        }
+        throw new NestedSetManagerException("No root node found for the interval " + parentLeft + ".." + parentRight);
+    }
+
+    /**
+     * Spreads the numbers of the descendants of the interval evenly keeping their order, the new numbers are written with JDBC batch
+     * updates.
+     */
+    @SuppressWarnings("unchecked")
+    private void renumber(long left, long right, long slots) {
+        List<Object[]> descendants = session
+                .createQuery("select node.id, node.leftnum, node.rightnum from " + entityName
+                        + " node where node.leftnum > :left and node.rightnum < :right")
+                .setLong(LEFT, left).setLong(RIGHT, right).list();
+        List<long[]> bounds = new ArrayList<>(descendants.size() * 2);
+        for (int i = 0; i < descendants.size(); i++) {
+            bounds.add(new long[] { (Long) descendants.get(i)[1], i });
+            bounds.add(new long[] { (Long) descendants.get(i)[2], i });
+        }
+        bounds.sort(Comparator.comparingLong(bound -> bound[0]));
+        long step = (right - left) / slots;
+        final long[][] numbers = new long[descendants.size()][];
+        long position = left;
+        for (long[] bound : bounds) {
+            position += step;
+            long[] nodeNumbers = numbers[(int) bound[1]];
+            if (nodeNumbers == null) {
+                numbers[(int) bound[1]] = new long[] { position, 0 };
+            } else {
+                nodeNumbers[1] = position;
+            }
+        }
+        final long[] ids = new long[descendants.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ((Number) descendants.get(i)[0]).longValue();
+        }
+        session.flush();
+        AbstractEntityPersister persister = (AbstractEntityPersister) session.getSessionFactory().getClassMetadata(entityClass);
+        final String sql = "update " + persister.getTableName() + " set " + persister.getPropertyColumnNames(LEFTNUM)[0] + " = ?, "
+                + persister.getPropertyColumnNames(RIGHTNUM)[0] + " = ? where " + persister.getIdentifierColumnNames()[0] + " = ?";
+        session.doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (int i = 0; i < ids.length; i++) {
+                    statement.setLong(1, numbers[i][0]);
+                    statement.setLong(2, numbers[i][1]);
+                    statement.setLong(3, ids[i]);
+                    statement.addBatch();
+                    if ((i + 1) % RENUMBER_BATCH_SIZE == 0) {
+                        statement.executeBatch();
+                    }
+                }
+                statement.executeBatch();
+            } catch (SQLException e) {
+                throw new JDBCException("Can't renumber " + entityName, e);
+            }
+        });
+    }
+
+    /**
+     * Counts the descendants of the nodes with a single grouped self-join.
+     *
+     * @return all and direct descendant counts by node id, the nodes without descendants are absent
+     */
+    @SuppressWarnings("unchecked")
+    Map<Long, long[]> countChildren(Collection<Long> ids) {
+        session.disableFilter("depthFilter");
+        List<Object[]> rows = session
+                .createQuery("select parent.id, count(child.id), sum(case when child.depth = parent.depth + 1 then 1 else 0 end) from "
+                        + entityName + " parent, " + entityName + " child where parent.id in (:ids) "
+                        + "and child.leftnum > parent.leftnum and child.rightnum < parent.rightnum group by parent.id")
+                .setParameterList("ids", ids).list();
+        Map<Long, long[]> counts = new HashMap<>();
+        for (Object[] row : rows) {
+            counts.put((Long) row[0], new long[] { ((Number) row[1]).longValue(), ((Number) row[2]).longValue() });
+        }
+        return counts;
+    }
+
+    /**
+     * Loads the paths from the root node down to the nodes with one query.
+     *
+     * @return path entities ordered by depth by node id, unknown ids are absent
+     */
+    @SuppressWarnings("unchecked")
+    <T> Map<Long, List<T>> getPaths(Collection<Long> childIds) {
+        session.disableFilter("depthFilter");
+        List<Object[]> rows = session
+                .createQuery("select child.id, node from " + entityName + " child, " + entityName + " node where child.id in (:ids) "
+                        + "and node.leftnum <= child.leftnum and node.rightnum >= child.rightnum order by node.leftnum")
+                .setParameterList("ids", childIds).list();
+        Map<Long, List<T>> paths = new HashMap<>();
+        for (Object[] row : rows) {
+            paths.computeIfAbsent((Long) row[0], k -> new ArrayList<>()).add((T) row[1]);
+        }
+        return paths;
+    }
+}
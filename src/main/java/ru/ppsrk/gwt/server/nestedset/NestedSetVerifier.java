@@ -0,0 +1,390 @@
+package ru.ppsrk.gwt.server.nestedset;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.JDBCException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ru.ppsrk.gwt.client.NestedSetManagerException;
+
+/**
+ * Checks the nested set numbering and rebuilds it from a parent reference. Both work on scalar scans and never load the entities, so
+ * they can be used on large tables.
+ */
+public class NestedSetVerifier {
+
+    public enum ProblemType {
+        /** the first node isn't a root with leftnum = 1 or there's more than one root */
+        WRONG_ROOT,
+        /** leftnum isn't less than rightnum */
+        EMPTY_INTERVAL,
+        /** the interval intersects the interval of a preceding node without being nested in it */
+        OVERLAP,
+        /** a number is skipped or used twice */
+        GAP,
+        /** depth doesn't match the number of enclosing intervals */
+        WRONG_DEPTH
+    }
+
+    public static class Problem {
+        private final ProblemType type;
+        private final long nodeId;
+        private final String message;
+
+        public Problem(ProblemType type, long nodeId, String message) {
+            this.type = type;
+            this.nodeId = nodeId;
+            this.message = message;
+        }
+
+        public ProblemType getType() {
+            return type;
+        }
+
+        public long getNodeId() {
+            return nodeId;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return type + " at node id=" + nodeId + ": " + message;
+        }
+    }
+
+    public static class Report {
+        private final long nodes;
+        private final long problemCount;
+        private final List<Problem> problems;
+
+        Report(long nodes, long problemCount, List<Problem> problems) {
+            this.nodes = nodes;
+            this.problemCount = problemCount;
+            this.problems = Collections.unmodifiableList(problems);
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return total number of problems found, may be more than the size of {@link #getProblems()}
+         */
+        public long getProblemCount() {
+            return problemCount;
+        }
+
+        public List<Problem> getProblems() {
+            return problems;
+        }
+
+        public boolean isValid() {
+            return problemCount == 0;
+        }
+    }
+
+    private static final String LEFTNUM = "leftnum";
+    private static final String RIGHTNUM = "rightnum";
+    private static final String DEPTH = "depth";
+    private static final int REPAIR_BATCH_SIZE = 1000;
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private Class<?> entityClass;
+    private String entityName;
+    private final Object lock;
+    private Session session;
+    private int maxProblems = 100;
+    private NestedSetSnapshotCache snapshotCache;
+
+    public NestedSetVerifier(Class<?> entityClass, Session session, Object lock) {
+        this.lock = lock;
+        this.session = session;
+        this.entityClass = entityClass;
+        entityName = entityClass.getSimpleName();
+    }
+
+    /**
+     * @param maxProblems
+     *            how many problems are kept in the report, the rest are only counted
+     */
+    public void setMaxProblems(int maxProblems) {
+        this.maxProblems = maxProblems;
+    }
+
+    public int getMaxProblems() {
+        return maxProblems;
+    }
+
+    /**
+     * @param snapshotCache
+     *            cache to invalidate after the repair, may be null
+     */
+    public void setSnapshotCache(NestedSetSnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    /**
+     * Checks the numbering invariants with one scan ordered by leftnum. Only the chain of the intervals enclosing the current node is kept,
+     * so the memory used depends on the tree depth, not on its size.
+     *
+     * @param allowGaps
+     *            don't report unused numbers, use for the trees in the sparse numbering mode
+     * @return verification report
+     */
+    public Report verify(boolean allowGaps) {
+        session.disableFilter("depthFilter");
+        List<Problem> problems = new ArrayList<>();
+        long problemCount = 0;
+        long nodes = 0;
+        long[] stackIds = new long[64];
+        long[] stackRights = new long[64];
+        int top = -1;
+        long last = 0;
+        ScrollableResults results = session
+                .createQuery("select node.id, node.leftnum, node.rightnum, node.depth from " + entityName + " node order by node.leftnum")
+                .setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                long id = ((Number) results.get(0)).longValue();
+                long left = ((Number) results.get(1)).longValue();
+                long right = ((Number) results.get(2)).longValue();
+                long depth = ((Number) results.get(3)).longValue();
+                List<Problem> found = new ArrayList<>();
+                while (top >= 0 && stackRights[top] < left) {
+                    checkNext(found, stackIds[top], stackRights[top], last, allowGaps);
+                    last = stackRights[top--];
+                }
+                if (nodes == 0 && (left != 1 || depth != 0)) {
+                    found.add(new Problem(ProblemType.WRONG_ROOT, id, "first node has leftnum=" + left + " and depth=" + depth));
+                } else if (nodes > 0 && top < 0) {
+                    found.add(new Problem(ProblemType.WRONG_ROOT, id, "node isn't nested in the root"));
+                }
+                if (left >= right) {
+                    found.add(new Problem(ProblemType.EMPTY_INTERVAL, id, "leftnum=" + left + ", rightnum=" + right));
+                }
+                checkNext(found, id, left, last, allowGaps);
+                if (top >= 0 && right >= stackRights[top]) {
+                    found.add(new Problem(ProblemType.OVERLAP, id, "interval [" + left + ", " + right
+                            + "] overlaps the interval of node id=" + stackIds[top] + " ending at " + stackRights[top]));
+                }
+                if (depth != top + 1) {
+                    found.add(new Problem(ProblemType.WRONG_DEPTH, id, "depth=" + depth + ", expected " + (top + 1)));
+                }
+                for (Problem problem : found) {
+                    if (problemCount++ < maxProblems) {
+                        problems.add(problem);
+                    }
+                }
+                last = left;
+                if (left < right) {
+                    if (++top == stackIds.length) {
+                        stackIds = Arrays.copyOf(stackIds, top * 2);
+                        stackRights = Arrays.copyOf(stackRights, top * 2);
+                    }
+                    stackIds[top] = id;
+                    stackRights[top] = right;
+                }
+                nodes++;
+            }
+        } finally {
+            results.close();
+        }
+        while (top >= 0) {
+            List<Problem> found = new ArrayList<>();
+            checkNext(found, stackIds[top], stackRights[top], last, allowGaps);
+            for (Problem problem : found) {
+                if (problemCount++ < maxProblems) {
+                    problems.add(problem);
+                }
+            }
+            last = stackRights[top--];
+        }
+        log.debug("Verified {} nodes of {}, {} problems found", nodes, entityName, problemCount);
+        return new Report(nodes, problemCount, problems);
+    }
+
+    private void checkNext(List<Problem> found, long id, long number, long last, boolean allowGaps) {
+        if (number <= last) {
+            found.add(new Problem(ProblemType.GAP, id, "number " + number + " follows " + last));
+        } else if (!allowGaps && number != last + 1) {
+            found.add(new Problem(ProblemType.GAP, id, "numbers " + (last + 1) + ".." + (number - 1) + " are unused"));
+        }
+    }
+
+    public int repair(String parentProperty) throws NestedSetManagerException {
+        return repair(parentProperty, REPAIR_BATCH_SIZE);
+    }
+
+    /**
+     * Rebuilds the dense numbering and the depths from the parent reference, the children are ordered by id. Only the ids and the parent
+     * ids are read to primitive arrays (16 bytes per node), the new numbers are written with JDBC batch updates. Nothing is changed if
+     * the tree doesn't have exactly one root or some nodes aren't reachable from it.
+     *
+     * @param parentProperty
+     *            property holding the parent id, e.g. "parentId" or "parent.id"; null for the root node
+     * @param batchSize
+     *            number of updates in a JDBC batch
+     * @return number of renumbered nodes
+     * @throws NestedSetManagerException
+     *             if the parent references don't form a tree
+     */
+    public int repair(String parentProperty, final int batchSize) throws NestedSetManagerException {
+        synchronized (lock) {
+            session.disableFilter("depthFilter");
+            if (snapshotCache != null) {
+                snapshotCache.invalidate(entityClass, session);
+            }
+            @SuppressWarnings("unchecked")
+            List<Number> roots = session
+                    .createQuery("select node.id from " + entityName + " node where node." + parentProperty + " is null order by node.id")
+                    .list();
+            if (roots.size() != 1) {
+                throw new NestedSetManagerException("The tree should have exactly one root but " + roots.size() + " found.");
+            }
+            final long rootId = roots.get(0).longValue();
+            int size = 0;
+            long[] ids = new long[1024];
+            long[] parents = new long[1024];
+            ScrollableResults results = session
+                    .createQuery("select node.id, node." + parentProperty + " from " + entityName + " node where node." + parentProperty
+                            + " is not null order by node." + parentProperty + ", node.id")
+                    .setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                while (results.next()) {
+                    if (size == ids.length) {
+                        ids = Arrays.copyOf(ids, size * 2);
+                        parents = Arrays.copyOf(parents, size * 2);
+                    }
+                    ids[size] = ((Number) results.get(0)).longValue();
+                    parents[size] = ((Number) results.get(1)).longValue();
+                    size++;
+                }
+            } finally {
+                results.close();
+            }
+            final long[] childIds = ids;
+            final long[] parentIds = parents;
+            final int childCount = size;
+            int reachable = renumber(rootId, childIds, parentIds, childCount, null);
+            if (reachable != childCount + 1) {
+                throw new NestedSetManagerException(
+                        (childCount + 1 - reachable) + " nodes aren't reachable from the root, check the parent references for cycles.");
+            }
+            session.flush();
+            AbstractEntityPersister persister = (AbstractEntityPersister) session.getSessionFactory().getClassMetadata(entityClass);
+            final String sql = "update " + persister.getTableName() + " set " + persister.getPropertyColumnNames(LEFTNUM)[0] + " = ?, "
+                    + persister.getPropertyColumnNames(RIGHTNUM)[0] + " = ?, " + persister.getPropertyColumnNames(DEPTH)[0] + " = ? where "
+                    + persister.getIdentifierColumnNames()[0] + " = ?";
+            session.doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    renumber(rootId, childIds, parentIds, childCount, new NodeWriter() {
+
+                        int pending = 0;
+
+                        @Override
+                        public void write(long id, long left, long right, long depth) {
+                            try {
+                                statement.setLong(1, left);
+                                statement.setLong(2, right);
+                                statement.setLong(3, depth);
+                                statement.setLong(4, id);
+                                statement.addBatch();
+                                if (++pending == batchSize) {
+                                    statement.executeBatch();
+                                    pending = 0;
+                                }
+                            } catch (SQLException e) {
+                                throw new JDBCException("Can't update node id=" + id, e);
+                            }
+                        }
+                    });
+                    statement.executeBatch();
+                }
+            });
+            session.clear();
+            log.debug("Repaired {} nodes of {}", reachable, entityName);
+            return reachable;
+        }
+    }
+
+    private interface NodeWriter {
+        void write(long id, long left, long right, long depth);
+    }
+
+    /**
+     * Walks the tree depth first without recursion. The children of a node are the contiguous range of the arrays sorted by parent id.
+     *
+     * @return number of visited nodes
+     */
+    private int renumber(long rootId, long[] ids, long[] parents, int size, NodeWriter writer) {
+        long[] stackIds = new long[64];
+        long[] stackLefts = new long[64];
+        int[] stackNext = new int[64];
+        int[] stackEnd = new int[64];
+        int top = 0;
+        stackIds[0] = rootId;
+        stackLefts[0] = 1;
+        stackNext[0] = firstChild(parents, size, rootId);
+        stackEnd[0] = endOfChildren(parents, size, stackNext[0], rootId);
+        long number = 1;
+        int visited = 1;
+        while (top >= 0) {
+            if (stackNext[top] < stackEnd[top]) {
+                int child = stackNext[top]++;
+                if (++top == stackIds.length) {
+                    stackIds = Arrays.copyOf(stackIds, top * 2);
+                    stackLefts = Arrays.copyOf(stackLefts, top * 2);
+                    stackNext = Arrays.copyOf(stackNext, top * 2);
+                    stackEnd = Arrays.copyOf(stackEnd, top * 2);
+                }
+                stackIds[top] = ids[child];
+                stackLefts[top] = ++number;
+                stackNext[top] = firstChild(parents, size, ids[child]);
+                stackEnd[top] = endOfChildren(parents, size, stackNext[top], ids[child]);
+                visited++;
+            } else {
+                if (writer != null) {
+                    writer.write(stackIds[top], stackLefts[top], ++number, top);
+                } else {
+                    ++number;
+                }
+                top--;
+            }
+        }
+        return visited;
+    }
+
+    private int firstChild(long[] parents, int size, long parentId) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (parents[mid] < parentId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int endOfChildren(long[] parents, int size, int from, long parentId) {
+        int end = from;
+        while (end < size && parents[end] == parentId) {
+            end++;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,68 @@
+package ru.ppsrk.gwt.server.nestedset;
+
+import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
+
+import ru.ppsrk.gwt.client.NestedSetManagerException;
+import ru.ppsrk.gwt.domain.TreeVersion;
+
+/**
+ * Optimistic versioning of the trees. The callers read the tree counter when they load the tree and every write transaction bumps it
+ * with an update conditional on that version before changing the numbering. The update holds the counter row lock till the end of the
+ * transaction, so a writer on another application node that read the counter before the commit finds it changed and fails instead of
+ * working on the stale numbering.
+ */
+final class TreeVersions {
+
+    private TreeVersions() {
+    }
+
+    /**
+     * @param session
+     *            current session
+     * @param tree
+     *            tree entity name
+     * @return current tree version, 0 if the tree was never modified with the versioning enabled
+     */
+    static long get(Session session, String tree) {
+        Long version = (Long) session.createQuery("select v.version from TreeVersion v where v.tree = :tree").setString("tree", tree)
+                .uniqueResult();
+        return version != null ? version : 0L;
+    }
+
+    /**
+     * Checks that the tree wasn't modified since the expected version was read and increments its version.
+     * 
+     * @param session
+     *            session of the write transaction
+     * @param tree
+     *            tree entity name
+     * @param expectedVersion
+     *            version read when the tree was loaded
+     * @return new tree version
+     * @throws NestedSetManagerException
+     *             if the tree was modified concurrently, the transaction should be rolled back and retried
+     */
+    static long increment(Session session, String tree, long expectedVersion) throws NestedSetManagerException {
+        int updated = session
+                .createQuery("update TreeVersion v set v.version = v.version + 1 where v.tree = :tree and v.version = :version")
+                .setString("tree", tree).setLong("version", expectedVersion).executeUpdate();
+        if (updated == 0) {
+            if (expectedVersion != 0) {
+                throw outdated(tree, expectedVersion);
+            }
+            // the first versioned write, another node creating the row at the same time violates the key
+            try {
+                session.save(new TreeVersion(tree, 1L));
+                session.flush();
+            } catch (ConstraintViolationException e) {
+                throw outdated(tree, expectedVersion);
+            }
+        }
+        return expectedVersion + 1;
+    }
+
+    private static NestedSetManagerException outdated(String tree, long version) {
+        return new NestedSetManagerException("Tree " + tree + " was modified concurrently, version " + version + " is outdated.");
+    }
+}
@@ -3,24 +3,62 @@ package ru.ppsrk.gwt.test;
 import static org.junit.Assert.*;
 import static ru.ppsrk.gwt.server.ServerUtils.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.dozer.DozerBeanMapper;
 import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import ru.ppsrk.gwt.client.ClientAuthenticationException;
 import ru.ppsrk.gwt.client.GwtUtilException;
+import ru.ppsrk.gwt.client.KeysetPage;
 import ru.ppsrk.gwt.client.LogicException;
 import ru.ppsrk.gwt.client.NestedSetManagerException;
+import ru.ppsrk.gwt.domain.TreeVersion;
+import ru.ppsrk.gwt.server.CompiledMapper;
 import ru.ppsrk.gwt.server.HibernateCallback;
+import ru.ppsrk.gwt.server.HibernateRowCallback;
 import ru.ppsrk.gwt.server.HibernateUtil;
+import ru.ppsrk.gwt.server.HibernateUtil.KeysetQuery;
+import ru.ppsrk.gwt.server.HibernateUtil.ListQueryFilter;
+import ru.ppsrk.gwt.server.HibernateUtil.ReplicaSelection;
+import ru.ppsrk.gwt.server.ParallelSessions;
+import ru.ppsrk.gwt.server.PoolMetrics;
+import ru.ppsrk.gwt.server.PooledConnectionProvider;
+import ru.ppsrk.gwt.server.QueryCacheRegions;
+import ru.ppsrk.gwt.server.QueryCacheRegions.RegionStatistics;
 import ru.ppsrk.gwt.server.ServerUtils;
+import ru.ppsrk.gwt.server.ServerUtils.MapperHint;
+import ru.ppsrk.gwt.server.hierarchy.MaterializedPathManager;
+import ru.ppsrk.gwt.server.nestedset.NSMFactory;
 import ru.ppsrk.gwt.server.nestedset.NestedSetManager;
 import ru.ppsrk.gwt.server.nestedset.NestedSetManagerNG;
+import ru.ppsrk.gwt.server.nestedset.NestedSetManagerNG.AnnotateChildren;
+import ru.ppsrk.gwt.server.nestedset.NestedSetManagerTS;
+import ru.ppsrk.gwt.server.nestedset.NestedSetSnapshot;
+import ru.ppsrk.gwt.server.nestedset.NestedSetSnapshotCache;
+import ru.ppsrk.gwt.server.nestedset.NestedSetVerifier;
+import ru.ppsrk.gwt.server.nestedset.NestedSetVerifier.ProblemType;
+import ru.ppsrk.gwt.server.nestedset.NestedSetVerifier.Report;
 import ru.ppsrk.gwt.test.domain.Dept;
 import ru.ppsrk.gwt.test.domain.DeptHier;
+import ru.ppsrk.gwt.test.domain.DeptMP;
 import ru.ppsrk.gwt.test.domain.DeptNG;
 import ru.ppsrk.gwt.test.dto.DeptHierDTO;
 
@@ -422,4 +460,742 @@ public class GWTUtilTest {
             }
         });
     }
+
+    @Test
+    public void testInsertNodesBulkNG() throws GwtUtilException {
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+                DeptNG sq13 = new DeptNG("13 Отряд", "Сыктывкар");
+                sq13.setId(100L);
+                DeptNG pch131 = new DeptNG("131 ПЧ", "Сыктывкар");
+                pch131.setId(101L);
+                pch131.setParent(sq13);
+                DeptNG sq14 = new DeptNG("14 Отряд", "Ухта");
+                sq14.setId(102L);
+                assertEquals(3, nsmNG.insertNodesBulk(Arrays.asList(sq13, pch131, sq14), 2L));
+                List<DeptNG> depts = session.createQuery("from DeptNG d order by d.leftnum").list();
+                assertEquals(9, depts.size());
+                assertEquals(18, depts.get(0).getRightNum().longValue());
+                // sq11
+                assertEquals(2, depts.get(1).getLeftNum().longValue());
+                assertEquals(11, depts.get(1).getRightNum().longValue());
+                // sq13
+                assertEquals("13 Отряд", depts.get(3).getName());
+                assertEquals(5, depts.get(3).getLeftNum().longValue());
+                assertEquals(8, depts.get(3).getRightNum().longValue());
+                assertEquals(2, depts.get(3).getDepth().longValue());
+                // pch131
+                assertEquals(6, depts.get(4).getLeftNum().longValue());
+                assertEquals(7, depts.get(4).getRightNum().longValue());
+                assertEquals(3, depts.get(4).getDepth().longValue());
+                // sq14
+                assertEquals("14 Отряд", depts.get(5).getName());
+                assertEquals(9, depts.get(5).getLeftNum().longValue());
+                assertEquals(10, depts.get(5).getRightNum().longValue());
+                // sq12
+                assertEquals(12, depts.get(6).getLeftNum().longValue());
+                assertEquals(17, depts.get(6).getRightNum().longValue());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testSparseInsertNG() throws GwtUtilException {
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+                nsmNG.setNumberingGap(16);
+                // the leaf has no space so the root is widened and the tree is spread, 3 between every two numbers at least
+                DeptNG first = nsmNG.insertNode(new DeptNG("1 пост", "Кожмудор"), 6L);
+                assertEquals(44, first.getLeftNum().longValue());
+                assertEquals(45, first.getRightNum().longValue());
+                DeptNG second = nsmNG.insertNode(new DeptNG("2 пост", "Кожмудор"), 6L);
+                assertEquals(46, second.getLeftNum().longValue());
+                assertEquals(47, second.getRightNum().longValue());
+                session.clear();
+                assertEquals(67, nsmNG.getRootNode().getRightNum().longValue());
+                DeptNG sq11 = nsmNG.getNodeById(2L);
+                assertEquals(7, sq11.getLeftNum().longValue());
+                assertEquals(25, sq11.getRightNum().longValue());
+                // only the subtree of sq12 having enough space is renumbered
+                DeptNG child = nsmNG.insertNode(new DeptNG("1 отделение", "Кожмудор"), first.getId());
+                assertEquals(4, child.getDepth().longValue());
+                session.clear();
+                assertEquals(67, nsmNG.getRootNode().getRightNum().longValue());
+                sq11 = nsmNG.getNodeById(2L);
+                assertEquals(7, sq11.getLeftNum().longValue());
+                assertEquals(25, sq11.getRightNum().longValue());
+                first = nsmNG.getNodeById(first.getId());
+                assertTrue(first.getLeftNum() < child.getLeftNum() && child.getRightNum() < first.getRightNum());
+                assertTrue(new NSMFactory().createVerifier(DeptNG.class, session).verify(true).isValid());
+                assertEquals(3, nsmNG.getChildrenByParentId(6L, "id", false).size());
+                assertEquals(2, nsmNG.getChildrenByParentId(6L, "id", true).size());
+                nsmNG.deleteNode(second.getId(), false);
+                session.clear();
+                assertEquals(67, nsmNG.getRootNode().getRightNum().longValue());
+                assertEquals(2, nsmNG.getChildrenByParentId(6L, "id", false).size());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testSparseInsertTS() throws GwtUtilException {
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NSMFactory factory = new NSMFactory();
+                factory.setNumberingGap(Dept.class, 16);
+                NestedSetManagerTS<Dept, DeptHierDTO> nsmTS = factory.createNSM(Dept.class, DeptHierDTO.class, session);
+                assertEquals(16, nsmTS.getNumberingGap());
+                Dept first = nsmTS.insertNode(new Dept("1 пост", "Кожмудор"), 6L);
+                Dept second = nsmTS.insertNode(new Dept("2 пост", "Кожмудор"), 6L);
+                Dept child = nsmTS.insertNode(new Dept("1 отделение", "Кожмудор"), first.getId());
+                session.flush();
+                session.clear();
+                Dept parent = (Dept) session.get(Dept.class, 6L);
+                first = (Dept) session.get(Dept.class, first.getId());
+                second = (Dept) session.get(Dept.class, second.getId());
+                child = (Dept) session.get(Dept.class, child.getId());
+                assertTrue(parent.getLeftNum() < first.getLeftNum() && first.getRightNum() < second.getLeftNum()
+                        && second.getRightNum() < parent.getRightNum());
+                assertTrue(first.getLeftNum() < child.getLeftNum() && child.getRightNum() < first.getRightNum());
+                assertEquals(4, child.getDepth().longValue());
+                assertEquals(67, nsmTS.getRootNode().getRightNum().longValue());
+                assertTrue(new NSMFactory().createVerifier(Dept.class, session).verify(true).isValid());
+                return null;
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNumberingGapValidation() {
+        new NestedSetManagerNG<>(DeptNG.class, null, lock).setNumberingGap(1);
+    }
+
+    @Test
+    public void testAnnotateChildrenCountNG() throws GwtUtilException {
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+                List<DeptNG> depts = nsmNG.getChildrenByParentId(1L, "id", false, AnnotateChildren.BOTH);
+                // sq11
+                assertEquals(1, depts.get(0).getDirectChildrenCount().longValue());
+                assertEquals(1, depts.get(0).getChildrenCount().longValue());
+                // pch111
+                assertEquals(0, depts.get(1).getDirectChildrenCount().longValue());
+                assertEquals(0, depts.get(1).getChildrenCount().longValue());
+                // sq12
+                assertEquals(1, depts.get(2).getDirectChildrenCount().longValue());
+                assertEquals(2, depts.get(2).getChildrenCount().longValue());
+                nsmNG.setNumberingGap(16);
+                nsmNG.annotateChildrenCount(depts, AnnotateChildren.RECURSIVE);
+                assertEquals(2, depts.get(2).getChildrenCount().longValue());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testSnapshotCacheNG() throws GwtUtilException {
+        final NestedSetSnapshotCache cache = new NestedSetSnapshotCache();
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+                nsmNG.setSnapshotCache(cache);
+                NestedSetSnapshot snapshot = nsmNG.getSnapshot();
+                assertEquals(6, snapshot.size());
+                assertEquals(1L, snapshot.getRootId().longValue());
+                assertArrayEquals(new long[] { 2, 4 }, snapshot.getChildIds(1L, true));
+                assertArrayEquals(new long[] { 5, 6 }, snapshot.getChildIds(4L, false));
+                assertArrayEquals(new long[] { 1, 4, 5 }, snapshot.getAncestorIds(6L));
+                assertEquals(5L, snapshot.getParentId(6L).longValue());
+                assertEquals(2, nsmNG.getChildrenCount(4L, false).longValue());
+                assertEquals(1, nsmNG.getChildrenCount(4L, true).longValue());
+                assertEquals(1, cache.getMisses());
+                assertEquals(2, cache.getHits());
+                nsmNG.insertNode(new DeptNG("122 ПЧ", "Микунь"), 4L);
+                assertEquals(2, nsmNG.getChildrenCount(4L, true).longValue());
+                assertEquals(2, cache.getMisses());
+                // the uncommitted tree isn't cached
+                assertEquals(2, nsmNG.getChildrenByParentId(4L, "id", true).size());
+                assertEquals(3, cache.getMisses());
+                return null;
+            }
+        });
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+                nsmNG.setSnapshotCache(cache);
+                List<DeptNG> children = nsmNG.getChildrenByParentId(4L, "leftnum", true);
+                assertEquals(2, children.size());
+                assertEquals("121 ПЧ", children.get(0).getName());
+                assertEquals("122 ПЧ", children.get(1).getName());
+                // all the descendants are loaded by the interval query
+                assertEquals(3, nsmNG.getChildrenByParentId(4L, "leftnum", false).size());
+                assertEquals(5L, nsmNG.getParentByChild(6L, -1L).getId().longValue());
+                assertEquals(1L, nsmNG.getParentByChild(6L, 0L).getId().longValue());
+                assertNull(nsmNG.getParentByChild(5L, 3L));
+                assertEquals(4, cache.getMisses());
+                assertEquals(5, cache.getHits());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testAncestorsNG() throws GwtUtilException {
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+                List<DeptNG> path = nsmNG.getAncestors(6L);
+                assertEquals(4, path.size());
+                assertEquals(1L, path.get(0).getId().longValue());
+                assertNull(path.get(0).getParent());
+                assertEquals("12 Отряд", path.get(1).getName());
+                assertEquals(5L, path.get(3).getParent().getId().longValue());
+                Map<Long, List<DeptNG>> paths = nsmNG.getAncestors(Arrays.asList(6L, 3L));
+                assertEquals(4, paths.get(6L).size());
+                assertEquals(3, paths.get(3L).size());
+                assertEquals("11 Отряд", paths.get(3L).get(1).getName());
+                nsmNG.setSnapshotCache(new NestedSetSnapshotCache());
+                paths = nsmNG.getAncestors(Arrays.asList(6L, 3L));
+                assertEquals(4, paths.get(6L).size());
+                assertEquals(2L, paths.get(3L).get(2).getParent().getId().longValue());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testDeleteNodesNG() throws GwtUtilException {
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+                try {
+                    nsmNG.deleteNodes(Arrays.asList(4L, 5L), false);
+                    fail();
+                } catch (NestedSetManagerException e) {
+                    assertEquals("Need to delete more than one node but children deleting was explicitly prohibited.", e.getMessage());
+                }
+                assertEquals(2, nsmNG.deleteNodes(Arrays.asList(3L, 6L), false));
+                session.clear();
+                List<DeptNG> depts = nsmNG.getChildrenByParentId(1L, "id", false);
+                assertEquals(3, depts.size());
+                assertEquals(2, depts.get(0).getLeftNum().longValue());
+                assertEquals(3, depts.get(0).getRightNum().longValue());
+                assertEquals(4, depts.get(1).getLeftNum().longValue());
+                assertEquals(7, depts.get(1).getRightNum().longValue());
+                assertEquals(5, depts.get(2).getLeftNum().longValue());
+                assertEquals(6, depts.get(2).getRightNum().longValue());
+                assertEquals(8, nsmNG.getRootNode().getRightNum().longValue());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testMaterializedPath() throws GwtUtilException {
+        ServerUtils.resetTables(new String[] { "terrdeptsMP" });
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                MaterializedPathManager<DeptMP> manager = new MaterializedPathManager<>(DeptMP.class, session);
+                DeptMP sq11 = manager.insert(new DeptMP("11 Отряд"), null);
+                DeptMP pch111 = manager.insert(new DeptMP("111 ПЧ"), sq11.getId());
+                DeptMP sq12 = manager.insert(new DeptMP("12 Отряд"), null);
+                DeptMP pch121 = manager.insert(new DeptMP("121 ПЧ"), sq12.getId());
+                DeptMP op = manager.insert(new DeptMP("1 ОП 121 ПЧ"), pch121.getId());
+                assertEquals("1:4:5:6", op.getPath());
+                assertEquals(2, manager.getChildren(null, "id", true).size());
+                assertEquals(5, manager.getChildrenCount(null, false).longValue());
+                assertEquals("121 ПЧ", manager.getParent(op.getId()).getName());
+                List<DeptMP> path = manager.getAncestors(op.getId());
+                assertEquals(4, path.size());
+                assertEquals(pch121.getId(), path.get(3).getParent().getId());
+                manager.move(pch121.getId(), sq11.getId());
+                session.clear();
+                assertEquals("1:2:5:6", manager.getNodeById(op.getId()).getPath());
+                assertEquals(3, manager.getNodeById(op.getId()).getDepth().longValue());
+                assertEquals(3, manager.getChildrenCount(sq11.getId(), false).longValue());
+                try {
+                    manager.move(sq11.getId(), op.getId());
+                    fail();
+                } catch (LogicException e) {
+                    assertEquals("Can't move node to its own child or itself.", e.getMessage());
+                }
+                manager.delete(pch121.getId(), true);
+                assertEquals(1, manager.getChildrenCount(sq11.getId(), false).longValue());
+                assertEquals(pch111.getId(), manager.getChildren(sq11.getId(), "id", true).get(0).getId());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testOptimisticVersioningNG() throws GwtUtilException {
+        final NSMFactory factory = new NSMFactory();
+        factory.setOptimisticVersioning(true);
+        assertSame(factory.getLock(DeptNG.class), factory.getLock(DeptNG.class));
+        assertNotSame(factory.getLock(DeptNG.class), factory.getLock(Dept.class));
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = factory.createNSM(DeptNG.class, session);
+                nsmNG.insertNode(new DeptNG("13 Отряд", "Сыктывкар"), 1L);
+                nsmNG.deleteNode(4L, true);
+                session.clear();
+                TreeVersion version = (TreeVersion) session.get(TreeVersion.class, "DeptNG");
+                assertEquals(2, version.getVersion().longValue());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testOptimisticVersionMismatchNG() throws GwtUtilException {
+        final NSMFactory factory = new NSMFactory();
+        factory.setOptimisticVersioning(true);
+        final long version = HibernateUtil.exec(new HibernateCallback<Long>() {
+
+            @Override
+            public Long run(Session session) throws GwtUtilException {
+                return factory.createNSM(DeptNG.class, session).readTreeVersion();
+            }
+        });
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetManagerNG<DeptNG> nsmNG = factory.createNSM(DeptNG.class, session);
+                nsmNG.setTreeVersion(version);
+                nsmNG.insertNode(new DeptNG("13 Отряд", "Сыктывкар"), 1L);
+                assertEquals(version + 1, nsmNG.getTreeVersion().longValue());
+                return null;
+            }
+        });
+        try {
+            HibernateUtil.exec(new HibernateCallback<Void>() {
+
+                @Override
+                public Void run(Session session) throws GwtUtilException {
+                    NestedSetManagerNG<DeptNG> nsmNG = factory.createNSM(DeptNG.class, session);
+                    nsmNG.setTreeVersion(version);
+                    nsmNG.deleteNode(4L, true);
+                    return null;
+                }
+            });
+            fail();
+        } catch (NestedSetManagerException e) {
+            // the tree was changed after the version had been read
+        } finally {
+            HibernateUtil.exec(new HibernateCallback<Void>() {
+
+                @Override
+                public Void run(Session session) throws GwtUtilException {
+                    session.createQuery("delete from TreeVersion").executeUpdate();
+                    return null;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testVerifyAndRepairNG() throws GwtUtilException {
+        final NSMFactory factory = new NSMFactory();
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                NestedSetVerifier verifier = factory.createVerifier(DeptNG.class, session);
+                Report report = verifier.verify(false);
+                assertTrue(report.isValid());
+                assertEquals(6, report.getNodes());
+                long[][] parents = { { 2, 1 }, { 3, 2 }, { 4, 1 }, { 5, 4 }, { 6, 5 } };
+                for (long[] parent : parents) {
+                    session.createQuery("update DeptNG set parentId = :parent where id = :id").setLong("parent", parent[1])
+                            .setLong("id", parent[0]).executeUpdate();
+                }
+                session.createQuery("update DeptNG set leftnum = 8, depth = 1 where id = 5").executeUpdate();
+                report = verifier.verify(false);
+                assertFalse(report.isValid());
+                assertEquals(ProblemType.GAP, report.getProblems().get(0).getType());
+                assertEquals(6, verifier.repair("parentId"));
+                assertTrue(verifier.verify(false).isValid());
+                DeptNG pch121 = (DeptNG) session.get(DeptNG.class, 5L);
+                assertEquals(7, pch121.getLeftNum().longValue());
+                assertEquals(10, pch121.getRightNum().longValue());
+                assertEquals(2, pch121.getDepth().longValue());
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testCompiledMapper() {
+        DeptHier root = new DeptHier();
+        root.setId(1L);
+        root.setName("Управление");
+        root.setRoot(true);
+        DeptHier sq11 = new DeptHier();
+        sq11.setId(2L);
+        sq11.setName("11 Отряд");
+        sq11.setDislocation("Краснозатонский");
+        sq11.setParent(root);
+        CompiledMapper mapper = new CompiledMapper(new DozerBeanMapper());
+        DeptHierDTO dto = mapper.map(sq11, DeptHierDTO.class);
+        DeptHierDTO dozerDTO = new DozerBeanMapper().map(sq11, DeptHierDTO.class);
+        assertEquals(dozerDTO.getId(), dto.getId());
+        assertEquals(dozerDTO.getName(), dto.getName());
+        assertEquals(dozerDTO.getDislocation(), dto.getDislocation());
+        assertNull(dto.getRoot());
+        assertEquals(dozerDTO.getParent().getName(), dto.getParent().getName());
+        assertTrue(dto.getParent().getRoot());
+        assertNull(dto.getParent().getParent());
+        DeptHier copy = mapper.map(sq11, DeptHier.class);
+        assertNotSame(root, copy.getParent());
+        assertEquals(root.getId(), copy.getParent().getId());
+    }
+
+    public static class NumberHolder {
+        private Number value;
+
+        public Number getValue() {
+            return value;
+        }
+
+        public void setValue(Number value) {
+            this.value = value;
+        }
+    }
+
+    public static class LongHolder {
+        private Long value;
+
+        public Long getValue() {
+            return value;
+        }
+
+        public void setValue(Long value) {
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void testCompiledMapperFallback() {
+        final AtomicInteger fallbacks = new AtomicInteger();
+        CompiledMapper mapper = new CompiledMapper(new DozerBeanMapper() {
+            @Override
+            public <T> T map(Object source, Class<T> destinationClass) {
+                fallbacks.incrementAndGet();
+                return super.map(source, destinationClass);
+            }
+        });
+        NumberHolder holder = new NumberHolder();
+        holder.setValue(1);
+        assertEquals(Long.valueOf(1), mapper.map(holder, LongHolder.class).getValue());
+        assertEquals(1, fallbacks.get());
+        // an Integer needs a conversion but the next Long value is still mapped by the compiled plan
+        holder.setValue(2L);
+        assertEquals(Long.valueOf(2), mapper.map(holder, LongHolder.class).getValue());
+        assertEquals(1, fallbacks.get());
+    }
+
+    public static class DeptHint implements MapperHint {
+
+        @Override
+        public Class<?>[][] getMapperHints() {
+            return new Class<?>[][] { { DeptHier.class, DeptNG.class }, { DeptHierDTO.class, DeptNG.class } };
+        }
+    }
+
+    @Test
+    public void testMapperHints() {
+        DeptHier dept = new DeptHier();
+        dept.setName("11 Отряд");
+        DeptNG deptNG = new DeptNG("12 Отряд", "Микунь");
+        List<Object> mapped = mapArray(Arrays.<Object> asList(dept, deptNG, dept), Object.class, DeptHint.class);
+        assertEquals(3, mapped.size());
+        assertEquals("11 Отряд", ((DeptHierDTO) mapped.get(0)).getName());
+        assertEquals("Микунь", ((DeptNG) mapped.get(1)).getDislocation());
+        assertNotSame(deptNG, mapped.get(1));
+        assertEquals(DeptHier.class, mapModel(new DeptHierDTO(), Object.class, DeptHint.class).getClass());
+    }
+
+    @Test
+    public void testQueryStream() throws GwtUtilException {
+        final List<Object> names = new ArrayList<>();
+        assertEquals(6, HibernateUtil.queryForEach("select d.name from DeptNG d order by d.leftnum", null, null, null,
+                new HibernateRowCallback<Object>() {
+
+                    @Override
+                    public void process(Object row) throws GwtUtilException {
+                        names.add(row);
+                    }
+                }));
+        assertEquals("11 Отряд", names.get(1));
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) throws GwtUtilException {
+                try (Stream<DeptNG> depts = HibernateUtil.queryStream("from DeptNG d where d.depth = :depth order by d.leftnum",
+                        new String[] { "depth" }, new Object[] { 2L }, session, null, DeptNG.class, 1)) {
+                    assertEquals(Arrays.asList("111 ПЧ", "121 ПЧ"), depts.map(DeptNG::getName).collect(Collectors.toList()));
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testQueryPage() throws GwtUtilException {
+        KeysetQuery query = new KeysetQuery("d", "DeptNG d").where("d.name is not null").orderBy("d.name", "d.id");
+        KeysetPage<DeptNG> page = HibernateUtil.queryPage(query, null, 2, null);
+        assertEquals(Arrays.asList("1 ОП 121 ПЧ", "11 Отряд"), names(page));
+        assertTrue(page.isHasMore());
+        page = HibernateUtil.queryPage(query, page.getCursor(), 2, null);
+        assertEquals(Arrays.asList("111 ПЧ", "12 Отряд"), names(page));
+        assertTrue(page.isHasMore());
+        page = HibernateUtil.queryPage(query, page.getCursor(), 2, null);
+        assertEquals(Arrays.asList("121 ПЧ"), names(page));
+        assertFalse(page.isHasMore());
+        String cursor = page.getCursor();
+        page = HibernateUtil.queryPage(query, cursor, 2, null);
+        assertTrue(page.getItems().isEmpty());
+        assertEquals(cursor, page.getCursor());
+        query = new KeysetQuery("d", "DeptNG d").where("d.depth = :depth").setParameter("depth", 2L).orderBy("d.id").descending();
+        page = HibernateUtil.queryPage(query, null, 1, null);
+        assertEquals("121 ПЧ", page.getItems().get(0).getName());
+        page = HibernateUtil.queryPage(query, page.getCursor(), 1, null);
+        assertEquals("111 ПЧ", page.getItems().get(0).getName());
+        assertFalse(page.isHasMore());
+        try {
+            HibernateUtil.queryPage(query, "garbage", 1, null);
+            fail();
+        } catch (LogicException e) {
+        }
+        try {
+            new KeysetQuery("d", "DeptNG d").orderBy();
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            HibernateUtil.queryPage(new KeysetQuery("d", "DeptNG d"), null, 1, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testSaveAll() throws GwtUtilException {
+        List<DeptHierDTO> dtos = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            dtos.add(new DeptHierDTO(null, "Batch " + i, null));
+        }
+        List<Long> ids = HibernateUtil.saveAll(dtos, DeptHier.class);
+        assertEquals(7, ids.size());
+        assertEquals(7, new HashSet<>(ids).size());
+        DeptHierDTO changed = new DeptHierDTO(ids.get(3), "Changed", null);
+        DeptHierDTO added = new DeptHierDTO(null, "Added", null);
+        List<Long> newIds = HibernateUtil.exec(session -> HibernateUtil.saveAll(Arrays.asList(changed, added), DeptHier.class, 2, session));
+        assertEquals(ids.get(3), newIds.get(0));
+        for (int i = 0; i < 7; i++) {
+            String name = HibernateUtil.tryGetObject(ids.get(i), DeptHier.class, "Not saved").getName();
+            assertEquals(i == 3 ? "Changed" : "Batch " + i, name);
+        }
+        assertEquals("Added", HibernateUtil.tryGetObject(newIds.get(1), DeptHier.class, "Not saved").getName());
+    }
+
+    @Test
+    public void testSaveOrUpdateNonNull() throws GwtUtilException {
+        DeptNG pch111 = HibernateUtil.queryList("from DeptNG d where d.name = '111 ПЧ'", null, null, DeptNG.class).get(0);
+        DeptNG change = new DeptNG("111 ПСЧ", null);
+        change.setId(pch111.getId());
+        DeptNG added = new DeptNG("112 ПЧ", "Краснозатонский");
+        List<Long> ids = HibernateUtil.saveOrUpdateNonNullDTO(Arrays.asList(change, added), DeptNG.class);
+        assertEquals(pch111.getId(), ids.get(0));
+        DeptNG changed = HibernateUtil.tryGetObject(pch111.getId(), DeptNG.class, "Not found");
+        assertEquals("111 ПСЧ", changed.getName());
+        assertEquals("Краснозатонский", changed.getDislocation());
+        assertEquals(pch111.getLeftNum(), changed.getLeftNum());
+        assertEquals("112 ПЧ", HibernateUtil.tryGetObject(ids.get(1), DeptNG.class, "Not found").getName());
+        change.setId(1000L);
+        try {
+            HibernateUtil.saveOrUpdateNonNullDTO(change, DeptNG.class);
+            fail();
+        } catch (LogicException e) {
+        }
+    }
+
+    @Test
+    public void testSaveOrUpdateNonNullBatch() throws GwtUtilException {
+        List<DeptNG> depts = HibernateUtil.queryList("from DeptNG d order by d.id", null, null, DeptNG.class);
+        List<DeptNG> changes = new ArrayList<>();
+        for (DeptNG dept : depts) {
+            DeptNG change = new DeptNG(dept.getName() + " (изм.)", null);
+            change.setId(dept.getId());
+            changes.add(change);
+        }
+        DeptNG dislocation = new DeptNG(null, "Сыктывкар");
+        dislocation.setId(depts.get(0).getId());
+        changes.add(dislocation);
+        HibernateUtil.exec(session -> HibernateUtil.saveOrUpdateNonNull(session, changes));
+        List<DeptNG> changed = HibernateUtil.queryList("from DeptNG d order by d.id", null, null, DeptNG.class);
+        for (int i = 0; i < depts.size(); i++) {
+            assertEquals(depts.get(i).getName() + " (изм.)", changed.get(i).getName());
+            assertEquals(i == 0 ? "Сыктывкар" : depts.get(i).getDislocation(), changed.get(i).getDislocation());
+        }
+        DeptNG missing = new DeptNG("Нет", null);
+        missing.setId(1000L);
+        DeptNG rolledBack = new DeptNG("Откат", null);
+        rolledBack.setId(depts.get(0).getId());
+        try {
+            HibernateUtil.exec(session -> HibernateUtil.saveOrUpdateNonNull(session, Arrays.asList(rolledBack, missing)));
+            fail();
+        } catch (LogicException e) {
+        }
+        assertEquals(changed.get(0).getName(), HibernateUtil.tryGetObject(depts.get(0).getId(), DeptNG.class, "Not found").getName());
+    }
+
+    @Test
+    public void testPoolMetrics() throws GwtUtilException {
+        Properties settings = PooledConnectionProvider.settings(2, 1);
+        settings.setProperty("hibernate.connection.url", "jdbc:h2:mem:gwtutil_pool_test;MVCC=TRUE");
+        HibernateUtil.initSessionFactory("hibernate.gwtutil_testmem.cfg.xml", settings);
+        int index = HibernateUtil.getSessionFactories().size() - 1;
+        assertNull(HibernateUtil.getPoolMetrics().get(0));
+        for (int i = 0; i < 3; i++) {
+            HibernateUtil.exec(index, session -> session.createQuery("from DeptNG").list());
+        }
+        PoolMetrics metrics = HibernateUtil.getPoolMetrics().get(index);
+        assertEquals(0, metrics.getActive());
+        assertTrue(metrics.getTotal() <= 2);
+        assertTrue(metrics.getAcquired() >= 3);
+        assertEquals(metrics.getAcquired(), Arrays.stream(metrics.getAcquireHistogram()).sum());
+        HibernateUtil.getSessionFactories().remove(index).close();
+    }
+
+    @Test
+    public void testExecReadOnly() throws GwtUtilException {
+        HibernateUtil.setReplicas(0, ReplicaSelection.LEAST_LOADED, 0);
+        try {
+            String name = HibernateUtil.execReadOnly(session -> {
+                assertTrue(session.isDefaultReadOnly());
+                DeptNG dept = (DeptNG) session.createQuery("from DeptNG d where d.name = '111 ПЧ'").uniqueResult();
+                dept.setName("Changed");
+                return dept.getName();
+            });
+            assertEquals("Changed", name);
+        } finally {
+            HibernateUtil.setReplicas(0, ReplicaSelection.LEAST_LOADED);
+        }
+        assertEquals(1, HibernateUtil.queryList("from DeptNG d where d.name = '111 ПЧ'", null, null, DeptNG.class).size());
+    }
+
+    @Test
+    public void testQueryCacheRegions() throws GwtUtilException {
+        Properties settings = QueryCacheRegions.settings();
+        settings.setProperty("hibernate.connection.url", "jdbc:h2:mem:gwtutil_cache_test;MVCC=TRUE");
+        HibernateUtil.initSessionFactory("hibernate.gwtutil_testmem.cfg.xml", settings);
+        int index = HibernateUtil.getSessionFactories().size() - 1;
+        QueryCacheRegions.configureRegion("depts", 100, 60, DeptNG.class);
+        final ListQueryFilter filter = new ListQueryFilter().setCacheRegion("depts");
+        HibernateUtil.exec(index, session -> session.save(new DeptNG("11 Отряд", "Краснозатонский")));
+        for (int i = 0; i < 3; i++) {
+            List<DeptNG> depts = HibernateUtil.exec(index, session -> HibernateUtil.queryList("from DeptNG", null, null, session, filter));
+            assertEquals(1, depts.size());
+        }
+        RegionStatistics statistics = QueryCacheRegions.getStatistics(index).get("depts");
+        assertEquals(2, statistics.getHits());
+        assertEquals(1, statistics.getMisses());
+        assertEquals(1, statistics.getSize());
+        HibernateUtil.deleteObject(DeptNG.class, 2L);
+        assertEquals(0, QueryCacheRegions.getStatistics(index).get("depts").getSize());
+        HibernateUtil.getSessionFactories().remove(index).close();
+    }
+
+    @Test
+    public void testExecParallel() throws GwtUtilException {
+        List<Object> counts = HibernateUtil.execParallel(new int[] { 0, 0 },
+                sessions -> sessions.invokeAll(session -> session.createQuery("select count(*) from DeptNG").uniqueResult()));
+        assertEquals(Arrays.asList(6L, 6L), counts);
+        try {
+            HibernateUtil.execParallel(new int[] { 0, 0 }, sessions -> {
+                sessions.submit(0, session -> session.save(new DeptNG("13 Отряд", "Сыктывкар")));
+                return ParallelSessions.await(sessions.submit(1, session -> {
+                    throw new LogicException("Failed");
+                }));
+            });
+            fail();
+        } catch (LogicException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+        assertTrue(HibernateUtil.queryList("from DeptNG d where d.name = '13 Отряд'", null, null, DeptNG.class).isEmpty());
+    }
+
+    @Test
+    public void testExecParallelInterrupted() throws Exception {
+        Statistics statistics = HibernateUtil.getSessionFactory().getStatistics();
+        boolean statisticsEnabled = statistics.isStatisticsEnabled();
+        statistics.setStatisticsEnabled(true);
+        long opened = statistics.getSessionOpenCount();
+        long closed = statistics.getSessionCloseCount();
+        CountDownLatch release = new CountDownLatch(1);
+        // the sessions are opened only after the caller gives up waiting for them
+        ExecutorService executor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Thread caller = Thread.currentThread();
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            caller.interrupt();
+        }).start();
+        try {
+            HibernateUtil.execParallel(new int[] { 0, 0 }, executor, sessions -> null);
+            fail();
+        } catch (LogicException e) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        assertEquals(statistics.getSessionOpenCount() - opened, statistics.getSessionCloseCount() - closed);
+        statistics.setStatisticsEnabled(statisticsEnabled);
+    }
+
+    private List<String> names(KeysetPage<DeptNG> page) {
+        return page.getItems().stream().map(DeptNG::getName).collect(Collectors.toList());
+    }
 }
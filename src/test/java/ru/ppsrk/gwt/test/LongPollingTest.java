@@ -0,0 +1,492 @@
+package ru.ppsrk.gwt.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.RPCRequest;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+import ru.ppsrk.gwt.dto.LongPollingMessage;
+import ru.ppsrk.gwt.server.AsyncLongPollingServlet;
+import ru.ppsrk.gwt.server.LongPollingServer;
+import ru.ppsrk.gwt.server.LongPollingServer.Poll;
+import ru.ppsrk.gwt.server.LongPollingServerQueueManager;
+
+public class LongPollingTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private static class ValueServer extends LongPollingServer<String> {
+        volatile String value;
+
+        ValueServer(long period, long execDelay) {
+            super(period, execDelay);
+        }
+
+        @Override
+        public String exec() throws GwtUtilException {
+            return value;
+        }
+    }
+
+    public interface MessageService {
+        String getMessage();
+    }
+
+    @SuppressWarnings("serial")
+    private static class MessageServlet extends AsyncLongPollingServlet {
+        private final transient ServletContext context = stub(ServletContext.class, (method, args) -> null);
+
+        @Override
+        public ServletContext getServletContext() {
+            return context;
+        }
+
+        /**
+         * Calls the long polling method like {@link #service(HttpServletRequest, HttpServletResponse)} does after deserializing the
+         * request.
+         */
+        String getMessage(AsyncRequest asyncRequest, ValueServer server) throws Exception {
+            synchronized (this) {
+                if (perThreadRequest == null) {
+                    perThreadRequest = new ThreadLocal<>();
+                }
+                if (perThreadResponse == null) {
+                    perThreadResponse = new ThreadLocal<>();
+                }
+            }
+            perThreadRequest.set(asyncRequest.request);
+            perThreadResponse.set(asyncRequest.response);
+            try {
+                onAfterRequestDeserialized(new RPCRequest(MessageService.class.getMethod("getMessage"), new Object[0],
+                        RPC.getDefaultSerializationPolicy(), 0));
+                return startLongPolling(server, () -> server.value);
+            } finally {
+                perThreadRequest.set(null);
+                perThreadResponse.set(null);
+            }
+        }
+    }
+
+    /**
+     * Request suspended by the servlet with its async context and the response written to it.
+     */
+    private static class AsyncRequest {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        volatile boolean started;
+        volatile int completed;
+        volatile AsyncListener listener;
+        volatile String writerThread;
+        final HttpServletResponse response = stub(HttpServletResponse.class, (method, args) -> {
+            if (method.equals("getOutputStream")) {
+                return new ServletOutputStream() {
+
+                    @Override
+                    public void write(int b) {
+                        writerThread = Thread.currentThread().getName();
+                        output.write(b);
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        // blocking output
+                    }
+                };
+            }
+            return null;
+        });
+        HttpServletRequest request;
+        final AsyncContext context = stub(AsyncContext.class, (method, args) -> {
+            switch (method) {
+            case "getRequest":
+                return request;
+            case "getResponse":
+                return response;
+            case "addListener":
+                listener = (AsyncListener) args[0];
+                return null;
+            case "complete":
+                completed++;
+                return null;
+            case "start":
+                new Thread((Runnable) args[0], "container").start();
+                return null;
+            default:
+                return null;
+            }
+        });
+
+        AsyncRequest() {
+            request = stub(HttpServletRequest.class, (method, args) -> {
+                switch (method) {
+                case "isAsyncSupported":
+                    return true;
+                case "isAsyncStarted":
+                    return started;
+                case "startAsync":
+                    started = true;
+                    return context;
+                case "getAsyncContext":
+                    return context;
+                default:
+                    return null;
+                }
+            });
+        }
+
+        String getOutput() {
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, BiFunction<String, Object[], Object> answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            Object result = answer.apply(method.getName(), args);
+            if (result == null && method.getReturnType() == boolean.class) {
+                return false;
+            }
+            if (result == null && method.getReturnType() == int.class) {
+                return 0;
+            }
+            if (result == null && method.getReturnType() == long.class) {
+                return 0L;
+            }
+            return result;
+        });
+    }
+
+    private static void awaitCompletion(AsyncRequest asyncRequest) throws InterruptedException {
+        while (asyncRequest.completed == 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 5000)
+    public void testSignalWakesWaitingClient() throws Exception {
+        ValueServer server = new ValueServer(30000, 10000);
+        Future<String> result = executor.submit(server::start);
+        Thread.sleep(100);
+        assertFalse(result.isDone());
+        long signalled = System.nanoTime();
+        server.value = "changed";
+        server.signal();
+        assertEquals("changed", result.get(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - signalled < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test(timeout = 5000)
+    public void testSignalBeforeWaitIsNotLost() throws Exception {
+        ValueServer server = new ValueServer(30000, 0) {
+            private boolean first = true;
+
+            @Override
+            public String exec() throws GwtUtilException {
+                if (first) {
+                    // the value changes after this poll has seen nothing but before the client starts waiting
+                    first = false;
+                    value = "changed";
+                    signal();
+                    return null;
+                }
+                return value;
+            }
+        };
+        assertEquals("changed", executor.submit(server::start).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 5000)
+    public void testAsyncResult() throws Exception {
+        ValueServer server = new ValueServer(30000, 0);
+        AsyncRequest asyncRequest = new AsyncRequest();
+        assertNull(new MessageServlet().getMessage(asyncRequest, server));
+        assertTrue(asyncRequest.started);
+        assertEquals(1, server.getAsyncClientCount());
+        server.value = "hello";
+        server.signal();
+        awaitCompletion(asyncRequest);
+        assertTrue(asyncRequest.getOutput(), asyncRequest.getOutput().startsWith("//OK"));
+        assertTrue(asyncRequest.getOutput(), asyncRequest.getOutput().contains("hello"));
+        // written off the long polling threads
+        assertEquals("container", asyncRequest.writerThread);
+        assertEquals(0, server.getAsyncClientCount());
+        // the ready result is returned without suspending
+        AsyncRequest readyRequest = new AsyncRequest();
+        assertEquals("hello", new MessageServlet().getMessage(readyRequest, server));
+        assertFalse(readyRequest.started);
+    }
+
+    @Test(timeout = 5000)
+    public void testAsyncTimeout() throws Exception {
+        ValueServer server = new ValueServer(30000, 0);
+        AsyncRequest asyncRequest = new AsyncRequest();
+        assertNull(new MessageServlet().getMessage(asyncRequest, server));
+        asyncRequest.listener.onTimeout(null);
+        awaitCompletion(asyncRequest);
+        assertTrue(asyncRequest.getOutput(), asyncRequest.getOutput().startsWith("//OK"));
+        assertEquals(0, server.getAsyncClientCount());
+        String output = asyncRequest.getOutput();
+        server.value = "late";
+        server.signal();
+        Thread.sleep(100);
+        assertEquals(output, asyncRequest.getOutput());
+        assertEquals(1, asyncRequest.completed);
+    }
+
+    @Test(timeout = 5000)
+    public void testAsyncDisconnect() throws Exception {
+        ValueServer server = new ValueServer(30000, 0);
+        AsyncRequest brokenRequest = new AsyncRequest();
+        AsyncRequest completedRequest = new AsyncRequest();
+        MessageServlet servlet = new MessageServlet();
+        assertNull(servlet.getMessage(brokenRequest, server));
+        assertNull(servlet.getMessage(completedRequest, server));
+        assertEquals(2, server.getAsyncClientCount());
+        brokenRequest.listener.onError(null);
+        assertEquals(1, server.getAsyncClientCount());
+        completedRequest.listener.onComplete(null);
+        assertEquals(0, server.getAsyncClientCount());
+        server.value = "late";
+        server.signal();
+        Thread.sleep(100);
+        assertEquals("", brokenRequest.getOutput());
+        assertEquals("", completedRequest.getOutput());
+        assertEquals(0, brokenRequest.completed + completedRequest.completed);
+    }
+
+    @Test(timeout = 5000)
+    public void testLongPollingQueue() throws GwtUtilException, InterruptedException {
+        LongPollingServerQueueManager<LongPollingMessage> queueManager = new LongPollingServerQueueManager<>(1000, 0, 60000);
+        assertNull(queueManager.poll(null).poll());
+        for (int i = 0; i < 100; i++) {
+            queueManager.offer(new LongPollingMessage());
+        }
+        queueManager.setSequence(0L);
+        Collection<LongPollingMessage> messages = queueManager.exec();
+        assertEquals(100, messages.size());
+        long lastSequence = 0;
+        for (LongPollingMessage message : messages) {
+            assertTrue(message.getSequence() > lastSequence);
+            lastSequence = message.getSequence();
+        }
+        assertNull(queueManager.exec());
+        // offered in the same millisecond as the last received message
+        LongPollingMessage message = new LongPollingMessage();
+        queueManager.offer(message);
+        assertEquals(Arrays.asList(message), new ArrayList<>(queueManager.exec()));
+        assertEquals(Arrays.asList(message), new ArrayList<>(queueManager.poll(lastSequence).poll()));
+        assertNull(queueManager.poll(message.getSequence()).poll());
+
+        LongPollingServerQueueManager<LongPollingMessage> expiring = new LongPollingServerQueueManager<>(1000, 0, 50);
+        expiring.offer(new LongPollingMessage());
+        Thread.sleep(100);
+        assertNull(expiring.poll(0L).poll());
+        expiring.offer(new LongPollingMessage());
+        assertEquals(1, expiring.size());
+        assertEquals(1, expiring.poll(0L).poll().size());
+    }
+
+    @Test(timeout = 5000)
+    public void testLongPollingCursorAfterRestart() throws GwtUtilException {
+        LongPollingServerQueueManager<LongPollingMessage> previous = new LongPollingServerQueueManager<>(1000, 0, 60000);
+        LongPollingMessage old = new LongPollingMessage();
+        previous.offer(old);
+        // the client keeps the cursor of the previous run whose counter was further ahead, the new manager has published nothing yet
+        long cursor = old.getSequence() + 1000000;
+        LongPollingServerQueueManager<LongPollingMessage> restarted = new LongPollingServerQueueManager<>(1000, 0, 60000);
+        Poll<Collection<LongPollingMessage>> poll = restarted.poll(cursor);
+        assertNull(poll.poll());
+        LongPollingMessage message = new LongPollingMessage();
+        restarted.offer(message);
+        assertEquals(Arrays.asList(message), new ArrayList<>(poll.poll()));
+        assertNull(poll.poll());
+        assertEquals(Arrays.asList(message), new ArrayList<>(restarted.poll(cursor).poll()));
+        restarted.setSequence(cursor);
+        assertEquals(Arrays.asList(message), new ArrayList<>(restarted.exec()));
+        assertNull(restarted.exec());
+    }
+
+    @Test(timeout = 5000)
+    public void testLongPollingTopics() throws GwtUtilException {
+        LongPollingServerQueueManager<LongPollingMessage> queueManager = new LongPollingServerQueueManager<>(1000, 0, 60000);
+        LongPollingMessage dept1 = new LongPollingMessage();
+        LongPollingMessage common = new LongPollingMessage();
+        LongPollingMessage dept2 = new LongPollingMessage();
+        LongPollingMessage dept1Again = new LongPollingMessage();
+        queueManager.offer("dept1", dept1);
+        queueManager.offer(common);
+        queueManager.offer("dept2", dept2);
+        queueManager.offer("dept1", dept1Again);
+        assertEquals(Arrays.asList(dept1, common, dept1Again), new ArrayList<>(queueManager.poll(0L, "dept1").poll()));
+        assertEquals(Arrays.asList(common), new ArrayList<>(queueManager.poll(0L).poll()));
+        queueManager.setSequence(common.getSequence(), "dept2", "dept3");
+        assertEquals(Arrays.asList(dept2), new ArrayList<>(queueManager.exec()));
+        assertNull(queueManager.exec());
+    }
+
+    @Test(timeout = 5000)
+    public void testLongPollingTopicsInterleaved() throws GwtUtilException {
+        LongPollingServerQueueManager<LongPollingMessage> queueManager = new LongPollingServerQueueManager<>(1000, 0, 60000);
+        LongPollingServer.Poll<Collection<LongPollingMessage>> poll = queueManager.poll(null, "dept1");
+        assertNull(poll.poll());
+        LongPollingMessage common = new LongPollingMessage();
+        LongPollingMessage dept1 = new LongPollingMessage();
+        queueManager.offer(common);
+        queueManager.offer("dept1", dept1);
+        assertEquals(Arrays.asList(common, dept1), new ArrayList<>(poll.poll()));
+        assertNull(poll.poll());
+    }
+
+    @Test(timeout = 20000)
+    public void testLongPollingTopicsConcurrent() throws Exception {
+        LongPollingServerQueueManager<LongPollingMessage> queueManager = new LongPollingServerQueueManager<>(1000, 0, 60000);
+        int count = 20000;
+        List<LongPollingMessage> offered = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            offered.add(new LongPollingMessage());
+        }
+        LongPollingServer.Poll<Collection<LongPollingMessage>> poll = queueManager.poll(null, "dept1");
+        // the writer offers to the common buffer and the topic while the reader reads them one by one
+        Future<?> writer = executor.submit(() -> {
+            for (int i = 0; i < count; i++) {
+                if (i % 2 == 0) {
+                    queueManager.offer(offered.get(i));
+                } else {
+                    queueManager.offer("dept1", offered.get(i));
+                }
+            }
+        });
+        List<LongPollingMessage> received = new ArrayList<>(count);
+        while (!writer.isDone() || received.size() < count) {
+            Collection<LongPollingMessage> messages = poll.poll();
+            if (messages != null) {
+                received.addAll(messages);
+            } else if (writer.isDone()) {
+                break;
+            }
+        }
+        writer.get();
+        assertEquals(count, received.size());
+        assertTrue(offered.equals(received));
+    }
+
+    @Test(timeout = 5000)
+    public void testLongPollingTopicSignals() throws Exception {
+        AtomicInteger polls = new AtomicInteger();
+        LongPollingServerQueueManager<LongPollingMessage> queueManager = new LongPollingServerQueueManager<LongPollingMessage>(30000, 0,
+                60000) {
+            @Override
+            public Collection<LongPollingMessage> exec() throws GwtUtilException {
+                polls.incrementAndGet();
+                return super.exec();
+            }
+        };
+        Future<Collection<LongPollingMessage>> result = executor.submit(() -> {
+            queueManager.setSequence(null, "dept1");
+            return queueManager.start();
+        });
+        while (polls.get() == 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        queueManager.offer("dept2", new LongPollingMessage());
+        Thread.sleep(100);
+        assertEquals(1, polls.get());
+        assertFalse(result.isDone());
+        LongPollingMessage message = new LongPollingMessage();
+        queueManager.offer("dept1", message);
+        assertEquals(Arrays.asList(message), new ArrayList<>(result.get(1, TimeUnit.SECONDS)));
+
+        // asynchronous client
+        List<Collection<LongPollingMessage>> results = new ArrayList<>();
+        LongPollingServer.Poll<Collection<LongPollingMessage>> poll = queueManager.poll(null, "dept1");
+        AtomicInteger asyncPolls = new AtomicInteger();
+        queueManager.startAsync(new LongPollingServer.Poll<Collection<LongPollingMessage>>() {
+
+            @Override
+            public Collection<LongPollingMessage> poll() throws GwtUtilException {
+                asyncPolls.incrementAndGet();
+                return poll.poll();
+            }
+
+            @Override
+            public Collection<String> getTopics() {
+                return poll.getTopics();
+            }
+        }, new LongPollingServer.ResultCallback<Collection<LongPollingMessage>>() {
+
+            @Override
+            public void onResult(Collection<LongPollingMessage> messages) {
+                synchronized (results) {
+                    results.add(messages);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable caught) {
+                fail(caught.toString());
+            }
+        });
+        assertEquals(1, asyncPolls.get());
+        queueManager.offer("dept2", new LongPollingMessage());
+        Thread.sleep(100);
+        assertEquals(1, asyncPolls.get());
+        LongPollingMessage common = new LongPollingMessage();
+        queueManager.offer(common);
+        while (true) {
+            synchronized (results) {
+                if (!results.isEmpty()) {
+                    assertEquals(Arrays.asList(common), new ArrayList<>(results.get(0)));
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(0, queueManager.getAsyncClientCount());
+    }
+
+    @Test(timeout = 5000)
+    public void testLongPollingIdleTopicsRemoved() throws InterruptedException {
+        LongPollingServerQueueManager<LongPollingMessage> queueManager = new LongPollingServerQueueManager<>(1000, 0, 50);
+        queueManager.offer("idle", new LongPollingMessage());
+        Thread.sleep(100);
+        queueManager.offer("active", new LongPollingMessage());
+        assertEquals(1, queueManager.getTopicCount());
+        assertEquals(1, queueManager.size());
+    }
+}
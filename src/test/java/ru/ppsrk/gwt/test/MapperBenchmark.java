@@ -0,0 +1,85 @@
+package ru.ppsrk.gwt.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dozer.DozerBeanMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ru.ppsrk.gwt.server.CompiledMapper;
+import ru.ppsrk.gwt.test.domain.DeptHier;
+import ru.ppsrk.gwt.test.dto.DeptHierDTO;
+
+/**
+ * Compares {@link CompiledMapper} with the plain Dozer mapping on lists of entities with a nested parent, like the ones returned to the
+ * client by queryList. Not a unit test, run it with {@link #main(String[])} or the JMH runner, the score is the average time of a list
+ * mapping.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MapperBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int size;
+
+    private List<DeptHier> depts;
+    private DozerBeanMapper dozer;
+    private CompiledMapper compiled;
+
+    @Setup
+    public void setup() {
+        dozer = new DozerBeanMapper();
+        compiled = new CompiledMapper(new DozerBeanMapper());
+        depts = new ArrayList<>(size);
+        DeptHier root = new DeptHier();
+        root.setId(0L);
+        root.setName("root");
+        root.setRoot(true);
+        for (int i = 0; i < size; i++) {
+            DeptHier dept = new DeptHier();
+            dept.setId((long) i + 1);
+            dept.setName("dept " + i);
+            dept.setDislocation("dislocation " + i);
+            dept.setRoot(false);
+            dept.setParent(root);
+            depts.add(dept);
+        }
+    }
+
+    @Benchmark
+    public void dozer(Blackhole blackhole) {
+        for (DeptHier dept : depts) {
+            blackhole.consume(dozer.map(dept, DeptHierDTO.class));
+        }
+    }
+
+    @Benchmark
+    public void compiled(Blackhole blackhole) {
+        for (DeptHier dept : depts) {
+            blackhole.consume(compiled.map(dept, DeptHierDTO.class));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MapperBenchmark.class.getSimpleName()).build()).run();
+    }
+}
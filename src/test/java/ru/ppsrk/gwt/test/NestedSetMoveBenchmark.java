@@ -0,0 +1,143 @@
+package ru.ppsrk.gwt.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ru.ppsrk.gwt.client.GwtUtilException;
+import ru.ppsrk.gwt.server.HibernateUtil;
+import ru.ppsrk.gwt.server.ServerUtils;
+import ru.ppsrk.gwt.server.nestedset.NestedSetManagerNG;
+import ru.ppsrk.gwt.test.domain.DeptNG;
+
+/**
+ * Compares the bulk update based {@link NestedSetManagerNG#move(Long, Long)} with the former implementation that loaded and updated
+ * every descendant. Not a unit test, run it with {@link #main(String[])} or the JMH runner. Each tree has fanout 10 and is rebuilt
+ * before every iteration, the iteration moves the first top level subtree (about a tenth of the tree) under the last top level node
+ * once.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NestedSetMoveBenchmark {
+
+    private static final int FANOUT = 10;
+    private static final Object lock = new Object();
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    private Long nodeId;
+    private Long parentId;
+
+    @Setup(Level.Trial)
+    public void init() {
+        if (HibernateUtil.getSessionFactories().isEmpty()) {
+            HibernateUtil.initSessionFactory("hibernate.gwtutil_testmem.cfg.xml");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void createTree() throws GwtUtilException {
+        ServerUtils.resetTables(new String[] { "terrdeptsNG" });
+        HibernateUtil.exec(session -> {
+            NestedSetManagerNG<DeptNG> nsm = new NestedSetManagerNG<>(DeptNG.class, session, lock);
+            Long rootId = nsm.insertRootNode(new DeptNG()).getId();
+            List<DeptNG> nodes = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                DeptNG node = new DeptNG("n" + i, null);
+                node.setId((long) i + 1);
+                if (i >= FANOUT) {
+                    node.setParent(nodes.get(i / FANOUT - 1));
+                }
+                nodes.add(node);
+            }
+            nsm.insertNodesBulk(nodes, rootId, 1000);
+            return null;
+        });
+        HibernateUtil.exec(session -> {
+            nodeId = getIdByName(session, "n0");
+            parentId = getIdByName(session, "n" + (FANOUT - 1));
+            return null;
+        });
+    }
+
+    @Benchmark
+    public void bulkMove() throws GwtUtilException {
+        HibernateUtil.exec(session -> {
+            new NestedSetManagerNG<>(DeptNG.class, session, lock).move(nodeId, parentId);
+            session.flush();
+            return null;
+        });
+    }
+
+    @Benchmark
+    public void legacyMove() throws GwtUtilException {
+        HibernateUtil.exec(session -> {
+            legacyMove(new NestedSetManagerNG<>(DeptNG.class, session, lock), session, nodeId, parentId);
+            session.flush();
+            return null;
+        });
+    }
+
+    private static Long getIdByName(Session session, String name) {
+        return (Long) session.createQuery("select d.id from DeptNG d where d.name = :name").setString("name", name).uniqueResult();
+    }
+
+    /**
+     * The former move implementation kept as the baseline.
+     */
+    private static void legacyMove(NestedSetManagerNG<DeptNG> nsm, Session session, Long nodeId, Long newParentId)
+            throws GwtUtilException {
+        DeptNG node = nsm.getNodeById(nodeId);
+        DeptNG parentNode = nsm.getNodeById(newParentId);
+        long width = node.getRightNum() - node.getLeftNum() + 1;
+        long depthDiff = parentNode.getDepth() - node.getDepth() + 1;
+        for (DeptNG child : nsm.getChildrenByParentId(node.getId(), "id", false)) {
+            child.setDepth(child.getDepth() + depthDiff);
+        }
+        node.setDepth(node.getDepth() + depthDiff);
+        session.merge(node);
+        updateNodes(session, parentNode.getRightNum(), width);
+        session.flush();
+        session.clear();
+        session.refresh(node);
+        session.refresh(parentNode);
+        long moveDistance = parentNode.getRightNum() - node.getRightNum() - 1;
+        session.createQuery("update DeptNG node set node.leftnum = node.leftnum + :shift, node.rightnum = node.rightnum + :shift "
+                + "where node.leftnum >= :left and node.rightnum <= :right").setLong("left", node.getLeftNum())
+                .setLong("right", node.getRightNum()).setLong("shift", moveDistance).executeUpdate();
+        updateNodes(session, node.getLeftNum() + 1, -width);
+    }
+
+    private static void updateNodes(Session session, long left, long shift) {
+        session.createQuery("update DeptNG node set node.leftnum = node.leftnum + :shift where node.leftnum >= :left")
+                .setLong("left", left).setLong("shift", shift).executeUpdate();
+        session.createQuery("update DeptNG node set node.rightnum = node.rightnum + :shift where node.rightnum >= :left")
+                .setLong("left", left).setLong("shift", shift).executeUpdate();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(NestedSetMoveBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,34 @@
+package ru.ppsrk.gwt.test.domain;
+
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+import ru.ppsrk.gwt.domain.MaterializedPathNode;
+
+@SuppressWarnings("serial")
+@Entity
+@Table(name = "terrdeptsMP")
+public class DeptMP extends MaterializedPathNode {
+    String name;
+
+    public DeptMP() {
+    }
+
+    public DeptMP(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return "Dept [id=" + getId() + ", name=" + name + ", path=" + getPath() + ", depth=" + getDepth() + "]";
+    }
+
+}
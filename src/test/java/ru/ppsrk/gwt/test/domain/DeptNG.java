@@ -11,6 +11,7 @@ import ru.ppsrk.gwt.domain.NestedSetNodeNG;
 public class DeptNG extends NestedSetNodeNG {
     String name;
     String dislocation;
+    Long parentId;
 
     public DeptNG() {
     }
@@ -36,6 +37,14 @@ public class DeptNG extends NestedSetNodeNG {
         this.dislocation = dislocation;
     }
 
+    public Long getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(Long parentId) {
+        this.parentId = parentId;
+    }
+
     @Override
     public String toString() {
         return "Dept [id=" + getId() + ", name=" + name + ", dislocation=" + dislocation + ", left=" + getLeftNum() + ", right="